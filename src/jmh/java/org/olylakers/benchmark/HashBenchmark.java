@@ -0,0 +1,74 @@
+package org.olylakers.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.olylakers.bloomfilter.HashUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The offsets of one bizId by every hash of HashUtils, k offsets in a filter of 10 million keys at 1e-5
+ * @author olylakers
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"10"})
+    private int k;
+
+    @Param({"239626460"})
+    private int m;
+
+    private long bizId;
+    private final long[] offsets = new long[64];
+
+    @Benchmark
+    public int[] sha1Offset(){
+        return HashUtils.sha1Offset((int) ++bizId, k, m);
+    }
+
+    /**
+     * the legacy int[] api, allocates the result
+     */
+    @Benchmark
+    public int[] murmurHashOffset(){
+        return HashUtils.murmurHashOffset(++bizId, k, m);
+    }
+
+    @Benchmark
+    public long[] murmurHashOffsetBuffer(){
+        return HashUtils.murmurHashOffset(++bizId, k, m, offsets);
+    }
+
+    /**
+     * the hash of the local filters, hashMurmur of the 8 bytes of the bizId
+     */
+    @Benchmark
+    public long[] hadoopMurmurOffset(){
+        return HashUtils.hadoopMurmurOffset(++bizId, k, m, offsets);
+    }
+
+    @Benchmark
+    public long[] murmur3Offset(){
+        return HashUtils.murmur3Offset(++bizId, k, m, offsets);
+    }
+
+    @Benchmark
+    public long[] blockedOffset(){
+        return HashUtils.blockedOffset(++bizId, k, m / HashUtils.BLOCK_BITS * HashUtils.BLOCK_BITS, offsets);
+    }
+}
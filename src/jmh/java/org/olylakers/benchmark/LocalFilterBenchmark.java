@@ -0,0 +1,216 @@
+package org.olylakers.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olylakers.cBloomfilter.BlockedBloomFilter;
+import org.olylakers.cBloomfilter.BloomFilter;
+import org.olylakers.cBloomfilter.ConcurrentBloomFilter;
+import org.olylakers.cBloomfilter.CountingBloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * add/contains of the local filters, single threaded and by 4 threads.
+ * The filters are half filled before the measurement, so contains sees hits and misses.
+ * BloomFilter is not thread safe, so only its contains is measured by 4 threads,
+ * the concurrent adds go to ConcurrentBloomFilter and CountingBloomFilter.
+ * The batches of 4096 bizIds compare containsAll with the loop of contains, the score is per bizId.
+ * @author olylakers
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalFilterBenchmark {
+
+    @Param({"10000000"})
+    private long maxNum;
+
+    @Param({"0.00001"})
+    private double errorRate;
+
+    private BloomFilter bloom;
+    private BloomFilter blocked;
+    private ConcurrentBloomFilter concurrent;
+    private CountingBloomFilter counting;
+
+    /**
+     * shared by all the threads, so the threads add diff bizIds
+     */
+    private final AtomicLong sharedBizId = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup(){
+        bloom = new BloomFilter(maxNum, errorRate);
+        blocked = new BlockedBloomFilter(maxNum, errorRate);
+        concurrent = new ConcurrentBloomFilter(maxNum, errorRate);
+        counting = new CountingBloomFilter(maxNum, (float) errorRate);
+        for (long i = 0; i < maxNum / 2; i++) {
+            bloom.add(i * 2);
+            blocked.add(i * 2);
+            concurrent.add(i * 2);
+            counting.add(i * 2);
+        }
+        sharedBizId.set(maxNum);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadBizId {
+        long bizId;
+
+        long next(long maxNum){
+            bizId = (bizId + 1) % maxNum;
+            return bizId;
+        }
+    }
+
+    @Benchmark
+    public boolean bloomAdd(){
+        return bloom.add(sharedBizId.incrementAndGet());
+    }
+
+    @Benchmark
+    public boolean bloomContains(ThreadBizId id){
+        return bloom.contains(id.next(maxNum));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean bloomContains4Threads(ThreadBizId id){
+        return bloom.contains(id.next(maxNum));
+    }
+
+    /**
+     * the bizIds of one containsAll batch, spread over the whole filter
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        static final int SIZE = 4096;
+
+        final long[] bizIds = new long[SIZE];
+        final long[] result = new long[SIZE / 64];
+        long next;
+
+        long[] next(long maxNum){
+            for (int i = 0; i < SIZE; i++) {
+                next = (next + 7919) % (maxNum * 2);
+                bizIds[i] = next;
+            }
+            return bizIds;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.SIZE)
+    public int bloomContainsLoop(Batch batch){
+        int hits = 0;
+        for (long bizId : batch.next(maxNum)) {
+            if(bloom.contains(bizId)){
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.SIZE)
+    public int bloomContainsAll(Batch batch){
+        return bloom.containsAll(batch.next(maxNum), batch.result);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.SIZE)
+    public int blockedContainsLoop(Batch batch){
+        int hits = 0;
+        for (long bizId : batch.next(maxNum)) {
+            if(blocked.contains(bizId)){
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Batch.SIZE)
+    public int blockedContainsAll(Batch batch){
+        return blocked.containsAll(batch.next(maxNum), batch.result);
+    }
+
+    @Benchmark
+    public boolean concurrentAdd(){
+        return concurrent.add(sharedBizId.incrementAndGet());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean concurrentAdd4Threads(){
+        return concurrent.add(sharedBizId.incrementAndGet());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean concurrentContains4Threads(ThreadBizId id){
+        return concurrent.contains(id.next(maxNum));
+    }
+
+    /**
+     * add and remove the same bizId, so the counters do not saturate during the measurement
+     */
+    @Benchmark
+    public boolean countingAddRemove(){
+        long bizId = sharedBizId.incrementAndGet();
+        counting.add(bizId);
+        counting.remove(bizId);
+        return true;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean countingAddRemove4Threads(){
+        long bizId = sharedBizId.incrementAndGet();
+        counting.add(bizId);
+        counting.remove(bizId);
+        return true;
+    }
+
+    @Benchmark
+    public boolean countingContains(ThreadBizId id){
+        return counting.contains(id.next(maxNum));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean countingContains4Threads(ThreadBizId id){
+        return counting.contains(id.next(maxNum));
+    }
+
+    /**
+     * the "contains then add" of the comment in CountingBloomFilter, 0.006ms per call in production
+     */
+    @Benchmark
+    public boolean countingContainsThenAdd(){
+        long bizId = sharedBizId.incrementAndGet();
+        boolean contains = counting.contains(bizId);
+        if(!contains){
+            counting.add(bizId);
+            counting.remove(bizId);
+        }
+        return contains;
+    }
+}
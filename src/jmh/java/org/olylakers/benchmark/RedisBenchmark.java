@@ -0,0 +1,82 @@
+package org.olylakers.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.olylakers.bloomfilter.BloomFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * add/include of the redis BloomFilter, k round trips vs one pipeline.
+ * By default the commands go to RespStandIn in the same process, so the numbers are the client side cost
+ * plus the loopback round trips. To measure a real redis, redis.hosts must reach the forked benchmark JVM:
+ * mvn -Pjmh verify -Djmh.args="RedisBenchmark -jvmArgsAppend -Dredis.hosts=host:port".
+ * @author olylakers
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisBenchmark {
+
+    private static final String KEY = "bloomfilter-benchmark";
+
+    private RespStandIn standIn;
+    private BloomFilter filter;
+    private long bizId;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String hosts = System.getProperty("redis.hosts");
+        if(hosts == null){
+            standIn = new RespStandIn();
+            hosts = "127.0.0.1:" + standIn.getPort();
+        }
+        filter = new BloomFilter(hosts, 2000, 0.00001f, 10000000);
+        for (long i = 0; i < 10000; i++) {
+            filter.addWithPipe(KEY, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        filter.destroy();
+        if(standIn != null){
+            standIn.close();
+        }
+    }
+
+    @Benchmark
+    public void add(){
+        filter.add(KEY, ++bizId);
+    }
+
+    @Benchmark
+    public void addWithPipe(){
+        filter.addWithPipe(KEY, ++bizId);
+    }
+
+    @Benchmark
+    public boolean include(){
+        return filter.include(KEY, ++bizId % 20000);
+    }
+
+    @Benchmark
+    public boolean includeWithPipe(){
+        return filter.includeWithPipe(KEY, ++bizId % 20000);
+    }
+}
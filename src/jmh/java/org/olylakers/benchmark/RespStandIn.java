@@ -0,0 +1,210 @@
+package org.olylakers.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * An in-process server speaking the redis protocol, only PING, SETBIT, GETBIT, DEL and QUIT,
+ * so the redis benchmarks measure the client side(encoding, pipelining, pool) without a real redis.
+ * The replies are flushed only when the socket has no more buffered input, like a pipelining redis.
+ * One thread per connection, the strings are guarded by one lock.
+ * @author olylakers
+ *
+ */
+public class RespStandIn implements Runnable {
+
+    private final ServerSocket server;
+    private final Map<String, byte[]> strings = new HashMap<String, byte[]>();
+    private volatile boolean closed;
+
+    public RespStandIn() throws IOException {
+        server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this, "resp-stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort(){
+        return server.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+    }
+
+    public void run(){
+        while (!closed) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "resp-stand-in-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if(!closed){
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket){
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            try {
+                for (;;) {
+                    byte[][] command = readCommand(in);
+                    if(!execute(command, out)){
+                        out.flush();
+                        return;
+                    }
+                    if(in.available() == 0){
+                        out.flush();
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (EOFException e) {
+            //the client closed the connection
+        } catch (IOException e) {
+            if(!closed){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return false to close the connection
+     */
+    private boolean execute(byte[][] command, OutputStream out) throws IOException {
+        String name = SafeEncoder.encode(command[0]).toUpperCase();
+        if("PING".equals(name)){
+            out.write(SafeEncoder.encode("+PONG\r\n"));
+        }else if("QUIT".equals(name)){
+            out.write(SafeEncoder.encode("+OK\r\n"));
+            return false;
+        }else if("SETBIT".equals(name)){
+            long offset = Long.parseLong(SafeEncoder.encode(command[2]));
+            boolean value = command[3][0] == '1';
+            integer(out, setbit(SafeEncoder.encode(command[1]), offset, value));
+        }else if("GETBIT".equals(name)){
+            long offset = Long.parseLong(SafeEncoder.encode(command[2]));
+            integer(out, getbit(SafeEncoder.encode(command[1]), offset));
+        }else if("DEL".equals(name)){
+            int deleted = 0;
+            synchronized (strings) {
+                for (int i = 1; i < command.length; i++) {
+                    if(strings.remove(SafeEncoder.encode(command[i])) != null){
+                        deleted++;
+                    }
+                }
+            }
+            integer(out, deleted);
+        }else{
+            out.write(SafeEncoder.encode("-ERR unknown command '" + name + "'\r\n"));
+        }
+        return true;
+    }
+
+    private int setbit(String key, long offset, boolean value){
+        int index = (int) (offset >>> 3);
+        int mask = 0x80 >>> (int) (offset & 7);
+        synchronized (strings) {
+            byte[] string = strings.get(key);
+            if(string == null || string.length <= index){
+                byte[] grown = new byte[Math.max(index + 1, string == null ? 0 : string.length * 2)];
+                if(string != null){
+                    System.arraycopy(string, 0, grown, 0, string.length);
+                }
+                string = grown;
+                strings.put(key, string);
+            }
+            int old = (string[index] & mask) != 0 ? 1 : 0;
+            string[index] = (byte) (value ? string[index] | mask : string[index] & ~mask);
+            return old;
+        }
+    }
+
+    private int getbit(String key, long offset){
+        int index = (int) (offset >>> 3);
+        synchronized (strings) {
+            byte[] string = strings.get(key);
+            if(string == null || string.length <= index){
+                return 0;
+            }
+            return (string[index] & (0x80 >>> (int) (offset & 7))) != 0 ? 1 : 0;
+        }
+    }
+
+    private static void integer(OutputStream out, long value) throws IOException {
+        out.write(':');
+        out.write(SafeEncoder.encode(String.valueOf(value)));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    /**
+     * read one multi bulk request: *n\r\n($len\r\nbytes\r\n)*n
+     */
+    private static byte[][] readCommand(InputStream in) throws IOException {
+        expect(in, '*');
+        byte[][] command = new byte[(int) readLong(in)][];
+        for (int i = 0; i < command.length; i++) {
+            expect(in, '$');
+            byte[] arg = new byte[(int) readLong(in)];
+            int read = 0;
+            while (read < arg.length) {
+                int n = in.read(arg, read, arg.length - read);
+                if(n < 0){
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            command[i] = arg;
+        }
+        return command;
+    }
+
+    private static void expect(InputStream in, char c) throws IOException {
+        int b = in.read();
+        if(b < 0){
+            throw new EOFException();
+        }
+        if(b != c){
+            throw new IOException("unexpected '" + (char) b + "', '" + c + "' expected");
+        }
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        int b;
+        while ((b = in.read()) != '\r') {
+            if(b < 0){
+                throw new EOFException();
+            }
+            value = value * 10 + (b - '0');
+        }
+        in.read();
+        return value;
+    }
+}
@@ -0,0 +1,363 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olylakers.bloomfilter.WriteBehindBloomFilter.Backpressure;
+
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Non-blocking client of a redis BloomFilter, the caller thread only hashes the bizIds and queues the request.
+ * Every connection is a ShardedJedis owned by one dispatcher thread, the dispatcher drains all the queued requests
+ * of many callers, up to pipelineDepth commands, and sends them by one pipeline per shard,
+ * so the throughput is not bounded by the pool size and the round trip time.
+ * The setbit and getbit commands share the pipeline and are sent in the order the requests were submitted,
+ * so an include submitted after an add on the same connection sees the bits of the add.
+ * The queue of every connection holds capacity requests at most, when it is full the request is handled
+ * by the Backpressure policy, REJECT fails the future with RejectedExecutionException.
+ * @author olylakers
+ *
+ */
+public class AsyncBloomFilter {
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    private final BloomFilter filter;
+    private final Dispatcher[] dispatchers;
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * one multiplexed connection to every shard
+     * @param filter
+     */
+    public AsyncBloomFilter(BloomFilter filter){
+        this(filter, 1);
+    }
+
+    /**
+     * the caller waits when the queue is full
+     * @param filter
+     * @param connections the count of the multiplexed connections to every shard
+     */
+    public AsyncBloomFilter(BloomFilter filter, int connections){
+        this(filter, connections, DEFAULT_CAPACITY, Backpressure.BLOCK);
+    }
+
+    /**
+     * @param filter
+     * @param connections the count of the multiplexed connections to every shard
+     * @param capacity the max queued requests of one connection, a batch call queues one request per batchSize bizIds
+     * @param backpressure
+     */
+    public AsyncBloomFilter(BloomFilter filter, int connections, int capacity, Backpressure backpressure){
+        filter.requireBitLayout();
+        filter.requireShardedPool();
+        if(connections <= 0 || capacity <= 0){
+            throw new IllegalArgumentException("connections and capacity should be positive");
+        }
+        this.filter = filter;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        dispatchers = new Dispatcher[connections];
+        for (int i = 0; i < connections; i++) {
+            ShardedJedis jedis = new ShardedJedis(BloomFilter.parseShards(filter.getHosts(), filter.getTimeout()));
+            dispatchers[i] = new Dispatcher(jedis, "redis-bloomfilter-async-" + i);
+            dispatchers[i].start();
+        }
+    }
+
+    /**
+     * stop the dispatchers and close the connections, the requests not sent yet fail
+     */
+    public void destroy(){
+        running = false;
+        for (Dispatcher dispatcher : dispatchers) {
+            dispatcher.interrupt();
+        }
+    }
+
+    /**
+     * add one object using the specified key
+     * @param key
+     * @param bizId
+     * @return true if the bizId was not in the set before
+     */
+    public CompletableFuture<Boolean> addAsync(String key, long bizId){
+        Request request = new Request(key, new long[][]{filter.hashOffset(bizId)}, true);
+        submit(request);
+        return request.future.thenApply(result -> result[0]);
+    }
+
+    /**
+     * Check if a bizId is part of the set
+     * @param key
+     * @param bizId
+     * @return
+     */
+    public CompletableFuture<Boolean> includeAsync(String key, long bizId){
+        Request request = new Request(key, new long[][]{filter.hashOffset(bizId)}, false);
+        submit(request);
+        return request.future.thenApply(result -> result[0]);
+    }
+
+    /**
+     * add a batch of objects using the specified key
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] was not in the set before
+     */
+    public CompletableFuture<boolean[]> addAllAsync(String key, long[] bizIds){
+        return submitAll(key, bizIds, true);
+    }
+
+    /**
+     * Check if a batch of bizIds are part of the set
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] may be in the set
+     */
+    public CompletableFuture<boolean[]> includeAllAsync(String key, long[] bizIds){
+        return submitAll(key, bizIds, false);
+    }
+
+    /**
+     * the bizIds are split into requests of batchSize, so one request never exceeds pipelineDepth commands
+     */
+    private CompletableFuture<boolean[]> submitAll(String key, long[] bizIds, boolean set){
+        long[][] offsets = filter.batchOffset(bizIds);
+        int batchSize = filter.batchSize();
+        boolean[] result = new boolean[bizIds.length];
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        for (int from = 0; from < bizIds.length; from += batchSize) {
+            int to = Math.min(from + batchSize, bizIds.length);
+            long[][] chunk = new long[to - from][];
+            System.arraycopy(offsets, from, chunk, 0, chunk.length);
+            Request request = new Request(key, chunk, set);
+            submit(request);
+            int start = from;
+            futures.add(request.future.thenAccept(responses ->
+                    System.arraycopy(responses, 0, result, start, responses.length)));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> result);
+    }
+
+    private void submit(Request request){
+        if(!running){
+            request.future.completeExceptionally(new IllegalStateException("AsyncBloomFilter is destroyed"));
+            return;
+        }
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % dispatchers.length;
+        BlockingQueue<Request> queue = dispatchers[index].queue;
+        if(!queue.offer(request) && !overflow(queue, request)){
+            return;
+        }
+        //destroy之后dispatcher可能已经退出，不会再处理这个request
+        if(!running && queue.remove(request)){
+            request.future.completeExceptionally(new IllegalStateException("AsyncBloomFilter is destroyed"));
+        }
+    }
+
+    /**
+     * handle the request by the backpressure policy when the queue is full
+     * @return true if the request is queued
+     */
+    private boolean overflow(BlockingQueue<Request> queue, Request request){
+        switch (backpressure) {
+        case CALLER_RUNS:
+            sendInCaller(request);
+            return false;
+        case REJECT:
+            rejectedCount.incrementAndGet();
+            request.future.completeExceptionally(
+                    new RejectedExecutionException("async request queue is full, capacity " + capacity));
+            return false;
+        default:
+            try {
+                while (!queue.offer(request, 100, TimeUnit.MILLISECONDS)) {
+                    //dispatcher已经退出，队列不会再变空
+                    if(!running){
+                        request.future.completeExceptionally(new IllegalStateException("AsyncBloomFilter is destroyed"));
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                request.future.completeExceptionally(
+                        new RejectedExecutionException("interrupted while waiting for the async request queue", e));
+                return false;
+            }
+        }
+    }
+
+    /**
+     * send the request by a connection of the pool in the caller thread
+     */
+    private void sendInCaller(Request request){
+        List<Request> batch = new ArrayList<Request>(1);
+        batch.add(request);
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            sendBatch(jedis, batch);
+        } catch (RuntimeException e) {
+            connected = false;
+            request.future.completeExceptionally(e);
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * send the requests by one pipeline per shard in the order of the batch and complete their futures,
+     * sync returns after all the shards are read, so the connection is not used by the pipeline any more
+     */
+    private void sendBatch(ShardedJedis jedis, List<Request> batch){
+        ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, false);
+        for (Request request : batch) {
+            request.firstResponse = pipeline.size();
+            for (long[] offset : request.offsets) {
+                for (long i : offset) {
+                    pipeline.appendBit(filter.segmentKey(request.key, i), filter.segmentOffset(i), request.set);
+                }
+            }
+        }
+
+        boolean[] responses = pipeline.sync(filter.executor);
+        for (Request request : batch) {
+            request.complete(responses);
+        }
+    }
+
+    /**
+     * requests failed because the queue was full
+     * @return
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * the offsets of some bizIds, the future gets one result per bizId
+     */
+    private static class Request {
+        final String key;
+        final long[][] offsets;
+        final boolean set;
+        final CompletableFuture<boolean[]> future = new CompletableFuture<boolean[]>();
+        int commands;
+        int firstResponse;
+
+        Request(String key, long[][] offsets, boolean set){
+            this.key = key;
+            this.offsets = offsets;
+            this.set = set;
+            for (long[] offset : offsets) {
+                commands += offset.length;
+            }
+        }
+
+        /**
+         * for setbit the bizId is new if any bit was 0, for getbit the bizId is included if all bits are 1
+         * @param responses
+         */
+        void complete(boolean[] responses){
+            boolean[] result = new boolean[offsets.length];
+            int index = firstResponse;
+            for (int i = 0; i < offsets.length; i++) {
+                boolean all = true;
+                for (int j = 0; j < offsets[i].length; j++) {
+                    if(!responses[index++]){
+                        all = false;
+                    }
+                }
+                result[i] = set ? !all : all;
+            }
+            future.complete(result);
+        }
+    }
+
+    private class Dispatcher extends Thread {
+        private final ShardedJedis jedis;
+        private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>(capacity);
+
+        Dispatcher(ShardedJedis jedis, String name){
+            super(name);
+            this.jedis = jedis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run(){
+            List<Request> batch = new ArrayList<Request>();
+            try {
+                while (running) {
+                    Request first;
+                    try {
+                        first = queue.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    batch.add(first);
+                    int commands = first.commands;
+                    Request request;
+                    while (commands < filter.getPipelineDepth() && (request = queue.poll()) != null) {
+                        batch.add(request);
+                        commands += request.commands;
+                    }
+                    send(batch);
+                    batch.clear();
+                }
+            } finally {
+                IllegalStateException destroyed = new IllegalStateException("AsyncBloomFilter is destroyed");
+                for (Request request : queue) {
+                    request.future.completeExceptionally(destroyed);
+                }
+                jedis.disconnect();
+            }
+        }
+
+        private void send(List<Request> batch){
+            try {
+                sendBatch(jedis, batch);
+            } catch (RuntimeException e) {
+                //连接上可能还有没读完的回复，断开之后下一次发送会重新连接
+                try {
+                    jedis.disconnect();
+                } catch (RuntimeException ignore) {
+                }
+                for (Request request : batch) {
+                    request.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.olylakers.bloomfilter;
+
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Blocked BloomFilter based on redis, all the bits of one bizId are in one 512 bits block,
+ * so include reads the whole block with one GETRANGE and add sets the bits with one lua script call.
+ * The bitSize and hashFunctionCount are sized by the blocked layout false positive formula,
+ * see org.olylakers.cBloomfilter.BlockedBloomFilter#falsePositiveProbability
+ * @author olylakers
+ *
+ */
+public class BlockedBloomFilter extends BloomFilter {
+
+    private static final int BLOCK_BYTES = HashUtils.BLOCK_BITS / 8;
+
+    public BlockedBloomFilter(String hosts, int timeout, float errorRate, long maxKey){
+        this(hosts, timeout, errorRate, maxKey, 1);
+    }
+
+    public BlockedBloomFilter(String hosts, int timeout, float errorRate, long maxKey, int segmentCount){
+        super(hosts, timeout, errorRate, maxKey, segmentCount);
+        long bitSize = org.olylakers.cBloomfilter.BlockedBloomFilter.optimalM(maxKey, errorRate);
+        setBitSize(bitSize);
+        setHashFunctionCount(org.olylakers.cBloomfilter.BlockedBloomFilter.optimalK(maxKey, bitSize));
+    }
+
+    @Override
+    protected long[] hashOffset(long bizId){
+        return HashUtils.blockedOffset(bizId, getHashFunctionCount(), getBitSize(), new long[getHashFunctionCount()]);
+    }
+
+    /**
+     * add one object using the specified key, all the bits are in one block, so they are set by one lua script call
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public void add(String key, long bizId){
+        addWithScript(key, bizId);
+    }
+
+    /**
+     * Check if a bizId is part of the set, the block is read by one GETRANGE
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public boolean include(String key, long bizId){
+        long start = System.nanoTime();
+        boolean failed = true;
+        long[] offset = hashOffset(bizId);
+        String segmentKey = segmentKey(key, offset[0]);
+        long blockByte = blockByte(offset[0]);
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            byte[] block = jedis.getrange(SafeEncoder.encode(segmentKey), blockByte, blockByte + BLOCK_BYTES - 1);
+            failed = false;
+            return blockContains(block, offset);
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * the block is read by one GETRANGE, pipeline does not help
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public boolean includeWithPipe(String key, long bizId){
+        return include(key, bizId);
+    }
+
+    /**
+     * Check if a batch of bizIds are part of the set, one GETRANGE per bizId is sent by pipeline
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] may be in the set
+     */
+    @Override
+    public boolean[] includeAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean[] result = new boolean[bizIds.length];
+        long[][] offsets = batchOffset(bizIds);
+        int batchSize = Math.max(1, getPipelineDepth());
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, ShardedBitPipeline.Op.GETRANGE);
+                for (int i = from; i < to; i++) {
+                    long blockByte = blockByte(offsets[i][0]);
+                    pipeline.append(segmentKey(key, offsets[i][0]), blockByte, blockByte + BLOCK_BYTES - 1);
+                }
+
+                pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                for (int i = from; i < to; i++) {
+                    result[i] = blockContains(pipeline.range(i - from), offsets[i]);
+                }
+            }
+            failed = false;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE_ALL, System.nanoTime() - start, failed);
+        }
+
+        return result;
+    }
+
+    /**
+     * the blocked layout false positive probability, see org.olylakers.cBloomfilter.BlockedBloomFilter#falsePositiveProbability
+     * @param n
+     * @return
+     */
+    @Override
+    public double getFalsePositiveProbability(long n){
+        return org.olylakers.cBloomfilter.BlockedBloomFilter.falsePositiveProbability(n, getBitSize(), getHashFunctionCount());
+    }
+
+    /**
+     * the first byte of the block in the segment
+     * @param offset
+     * @return
+     */
+    private long blockByte(long offset){
+        return segmentOffset(offset) / HashUtils.BLOCK_BITS * BLOCK_BYTES;
+    }
+
+    /**
+     * check the bits in the block read by GETRANGE, redis stores the bit 0 as the most significant bit of the byte 0,
+     * the bytes after the end of the redis string are 0
+     * @param block
+     * @param offset
+     * @return
+     */
+    private boolean blockContains(byte[] block, long[] offset){
+        for (long i : offset) {
+            int bit = (int) (segmentOffset(i) % HashUtils.BLOCK_BITS);
+            int index = bit >>> 3;
+            if(index >= block.length || (block[index] & (0x80 >>> (bit & 7))) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,12 +1,23 @@
 package org.olylakers.bloomfilter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.pool.impl.GenericObjectPool.Config;
 
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisShardInfo;
 import redis.clients.jedis.ShardedJedis;
 import redis.clients.jedis.ShardedJedisPool;
@@ -21,25 +32,136 @@ public class BloomFilter {
     
     private String hosts;
     private int timeout;
-    private int maxKey;
+    private long maxKey;
     private float errorRate;
     private int hashFunctionCount;
     
-    private int bitSize;
+    private long bitSize;
     
-    private ShardedJedisPool pool;
+    /**
+     * the hash algorithm of the offsets, keep MURMUR for the filters already in redis,
+     * MURMUR only addresses Integer.MAX_VALUE bits, larger filters use MURMUR3
+     */
+    private HashAlgorithm hashAlgorithm = HashAlgorithm.MURMUR;
+    
+    /**
+     * the bits of one filter are split into segmentCount redis keys: key:0, key:1 ...,
+     * so the segments are spread to all the redis shards, if segmentCount is 1, the key is used directly,
+     * segmentBits is a multiple of HashUtils.BLOCK_BITS, so one block never spans two segments,
+     * a redis string can not be larger than 512MB, so the segments are added automatically for large filters
+     */
+    private int segmentCount = 1;
+    private long segmentBits;
+    
+    /**
+     * the max bits of one redis string, 512MB
+     */
+    public static final long MAX_SEGMENT_BITS = 1L << 32;
+    
+    /**
+     * the max connections of the redis pool
+     */
+    static final int MAX_ACTIVE = 50;
+    
+    /**
+     * max commands buffered in one pipeline before sync, keep the memory of batch call bounded
+     */
+    private int pipelineDepth = 10000;
+    
+    protected ShardedJedisPool pool;
+    
+    /**
+     * sync the pipelines of diff shards in parallel, sized to the redis pool so the shards of every borrowed
+     * connection can be synced at the same time
+     */
+    protected ExecutorService executor;
+    
+    /**
+     * the callbacks of the operations, the pool wait and the pipeline sizes, see DefaultBloomFilterMetrics
+     */
+    protected volatile BloomFilterMetrics metrics = BloomFilterMetrics.NOOP;
     
     private String defaultKey = "redis:bloomfilter";
     private static final String hostConfig = "127.0.0.1:6001";
     
-    public BloomFilter(String hosts, int timeout, float errorRate, int maxKey){
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: offsets
+     * set the bits which are not set yet, return 1 if any bit was not set before, otherwise return 0,
+     * SETBIT is a write even if the bit is 1 already, so checking it first keeps the saturated filter
+     * from writing replication and AOF traffic
+     */
+    static final LuaScript ADD_SCRIPT = new LuaScript(
+            "local added = 0\n" +
+            "for i = 1, #ARGV do\n" +
+            "    if redis.call('GETBIT', KEYS[1], ARGV[i]) == 0 then\n" +
+            "        redis.call('SETBIT', KEYS[1], ARGV[i], 1)\n" +
+            "        added = 1\n" +
+            "    end\n" +
+            "end\n" +
+            "return added");
+    
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: offsets
+     * return 1 if all the bits are set, otherwise return 0
+     */
+    static final LuaScript INCLUDE_SCRIPT = new LuaScript(
+            "for i = 1, #ARGV do\n" +
+            "    if redis.call('GETBIT', KEYS[1], ARGV[i]) == 0 then\n" +
+            "        return 0\n" +
+            "    end\n" +
+            "end\n" +
+            "return 1");
+    
+    public BloomFilter(String hosts, int timeout, float errorRate, long maxKey){
+        this(hosts, timeout, errorRate, maxKey, 1);
+    }
+    
+    /**
+     * @param hosts
+     * @param timeout
+     * @param errorRate
+     * @param maxKey
+     * @param segmentCount split the bits of one filter into segmentCount keys, 
+     *        usually a multiple of the count of redis hosts, 
+     *        it is raised automatically if one segment would be larger than MAX_SEGMENT_BITS
+     */
+    public BloomFilter(String hosts, int timeout, float errorRate, long maxKey, int segmentCount){
+        this(errorRate, maxKey, segmentCount);
         this.hosts = hosts;
         this.timeout = timeout;
+        List<JedisShardInfo> shards = parseShards(hosts, timeout);
+        
+        pool = initRedisPool(shards);
+        executor = initExecutor(shards.size());
+    }
+    
+    /**
+     * size the filter only, for the subclasses connecting to redis by themselves, pool and executor are not created
+     * @param errorRate
+     * @param maxKey
+     * @param segmentCount
+     */
+    protected BloomFilter(float errorRate, long maxKey, int segmentCount){
+        if(segmentCount <= 0){
+            throw new IllegalArgumentException("segmentCount should be positive");
+        }
         this.maxKey = maxKey;
         this.errorRate = errorRate;
-        String[] hostInfos = hosts.split(";");
+        this.segmentCount = segmentCount;
+        setBitSize(calcOptimalM(maxKey, errorRate));
+        hashFunctionCount =calcOptimalK(bitSize, maxKey);
+    }
+    
+    /**
+     * parse the hosts: host1:port1;host2:port2
+     * @param hosts
+     * @param timeout
+     * @return
+     */
+    static List<JedisShardInfo> parseShards(String hosts, int timeout){
         List<JedisShardInfo> shards = new ArrayList<JedisShardInfo>();
         if(StringUtils.isNotBlank(hosts)){
+            String[] hostInfos = hosts.split(";");
             for (String hostInfo : hostInfos) {
                 String[] host = hostInfo.split(":");
                 if(host.length != 2){
@@ -54,11 +176,7 @@ public class BloomFilter {
         }else{
             throw new IllegalArgumentException("redis host.length != 2");
         }
-        
-        pool = initRedisPool(shards);
-        
-        bitSize = calcOptimalM(maxKey, errorRate);
-        hashFunctionCount =calcOptimalK(bitSize, maxKey);
+        return shards;
     }
     
     private ShardedJedisPool initRedisPool(List<JedisShardInfo> shards){
@@ -72,7 +190,7 @@ public class BloomFilter {
         //最大空闲数
         config.maxIdle = 50;
         //最大连接数
-        config.maxActive = 50;
+        config.maxActive = MAX_ACTIVE;
         //允许最大等待时间，2s，单位：ms
         config.maxWait = 2 * 1000;
         
@@ -80,11 +198,43 @@ public class BloomFilter {
         return new ShardedJedisPool(config,shards);
     }
     
+    private ExecutorService initExecutor(int shardCount){
+        if(shardCount <= 1){
+            return null;
+        }
+        //每个借出的连接最多同时有shardCount - 1个分片在线程池里sync，第一个分片在调用线程里sync
+        int threads = MAX_ACTIVE * (shardCount - 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+            
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-bloomfilter-pipeline-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /**
+     * close the redis pool and the pipeline threads
+     */
+    public void destroy(){
+        if(executor != null){
+            executor.shutdown();
+        }
+        if(pool != null){
+            pool.destroy();
+        }
+    }
+    
     /**
      * add one object, using default key
      * @param bizId
      */
-    public void add(int bizId){
+    public void add(long bizId){
         add(defaultKey, bizId);
     }
     
@@ -94,14 +244,17 @@ public class BloomFilter {
      * @param bizId
      */
     public void add(String key, long bizId){
-        int[] offset = HashUtils.murmurHashOffset(bizId, hashFunctionCount, bitSize);
+        long start = System.nanoTime();
+        boolean failed = true;
+        long[] offset = hashOffset(bizId);
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
-            for (int i : offset) {
-                jedis.setbit(key, i, true);
+            jedis = getResource();
+            for (long i : offset) {
+                jedis.setbit(segmentKey(key, i), segmentOffset(i), true);
             }
+            failed = false;
         }finally{
             if(jedis != null){
                 if(connected){
@@ -110,6 +263,7 @@ public class BloomFilter {
                     pool.returnBrokenResource(jedis);
                 }
             }
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD, System.nanoTime() - start, failed);
         }
     }
     
@@ -119,17 +273,25 @@ public class BloomFilter {
      * @param bizId
      */
     public void addWithPipe(String key, long bizId){
-        int[] offset = HashUtils.murmurHashOffset(bizId, hashFunctionCount, bitSize);
+        long start = System.nanoTime();
+        boolean failed = true;
+        long[] offset = hashOffset(bizId);
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
-            ShardedJedisPipeline pipeline = jedis.pipelined();
-            for (int i : offset) {
-                pipeline.setbit(key, i, true);
+            jedis = getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, true);
+            for (long i : offset) {
+                pipeline.append(segmentKey(key, i), segmentOffset(i));
             }
             
-            pipeline.sync();
+            pipeline.sync(executor);
+            metrics.recordPipeline(pipeline.size());
+            failed = false;
+        } catch (RuntimeException e) {
+            //the pipeline replies may not be read, do not return the connection to the pool
+            connected = false;
+            throw e;
         }finally{
             if(jedis != null){
                 if(connected){
@@ -138,6 +300,7 @@ public class BloomFilter {
                     pool.returnBrokenResource(jedis);
                 }
             }
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD, System.nanoTime() - start, failed);
         }
     }     
     
@@ -147,16 +310,20 @@ public class BloomFilter {
      * @param bizId
      */
     public boolean include(String key, long bizId){
-        int[] offset = HashUtils.murmurHashOffset(bizId, hashFunctionCount, bitSize);
+        long start = System.nanoTime();
+        boolean failed = true;
+        long[] offset = hashOffset(bizId);
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
-            for (int i : offset) {
-                if(!jedis.getbit(key, i)){
+            jedis = getResource();
+            for (long i : offset) {
+                if(!jedis.getbit(segmentKey(key, i), segmentOffset(i))){
+                    failed = false;
                     return false;
                 }
             }
+            failed = false;
         }finally{
             if(jedis != null){
                 if(connected){
@@ -165,6 +332,7 @@ public class BloomFilter {
                     pool.returnBrokenResource(jedis);
                 }
             }
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
         }
         
         return true;
@@ -176,25 +344,29 @@ public class BloomFilter {
      * @param bizId
      */
     public boolean includeWithPipe(String key, long bizId){
-        int[] offset = HashUtils.murmurHashOffset(bizId, hashFunctionCount, bitSize);
+        long start = System.nanoTime();
+        boolean failed = true;
+        long[] offset = hashOffset(bizId);
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
-            ShardedJedisPipeline pipeline = jedis.pipelined();
-            for (int i : offset) {
-                pipeline.getbit(key, i);
+            jedis = getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, false);
+            for (long i : offset) {
+                pipeline.append(segmentKey(key, i), segmentOffset(i));
             }
             
-            List<Object> responses = pipeline.syncAndReturnAll();
-            for (Object object : responses) {
-                if(object instanceof Boolean){
-                    Boolean contains = (Boolean) object;
-                    if(!contains){
-                        return false;
-                    }
+            boolean[] responses = pipeline.sync(executor);
+            metrics.recordPipeline(pipeline.size());
+            failed = false;
+            for (boolean contains : responses) {
+                if(!contains){
+                    return false;
                 }
             }
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
         }finally{
             if(jedis != null){
                 if(connected){
@@ -203,16 +375,368 @@ public class BloomFilter {
                     pool.returnBrokenResource(jedis);
                 }
             }
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
         }
         
         return true;
     }
+    /**
+     * add one object using the specified key, all the bits are checked and set by one lua script call,
+     * only the bits not set yet are written
+     * @param key
+     * @param bizId
+     */
+    public void addWithScript(String key, long bizId){
+        addIfAbsent(key, bizId);
+    }
+    
+    /**
+     * Check if a bizId is part of the set, all the bits are checked by one lua script call
+     * @param key
+     * @param bizId
+     */
+    public boolean includeWithScript(String key, long bizId){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long[] responses = evalSegments(INCLUDE_SCRIPT, key, distinctOffset(bizId), true);
+            failed = false;
+            for (long response : responses) {
+                if(response != 1){
+                    return false;
+                }
+            }
+            return true;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
+        }
+    }
+    
+    /**
+     * add one object if it is not part of the set, the check and add are done atomically by one lua script call,
+     * the offsets are deduplicated and sorted, and only the bits not set yet are written,
+     * if the filter is split into segments, the check and add are atomic in every segment only
+     * @param key
+     * @param bizId
+     * @return true if the bizId was not in the set before, that is the script of any segment returned 1
+     */
+    public boolean addIfAbsent(String key, long bizId){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean added = false;
+            for (long response : evalSegments(ADD_SCRIPT, key, distinctOffset(bizId), false)) {
+                if(response == 1){
+                    added = true;
+                }
+            }
+            failed = false;
+            return added;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD_IF_ABSENT, System.nanoTime() - start, failed);
+        }
+    }
+    
+    /**
+     * load all the lua scripts into every redis server, 
+     * it is optional, the scripts will be loaded when the server responds NOSCRIPT
+     */
+    public void loadScripts(){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (Jedis shard : jedis.getAllShards()) {
+                ADD_SCRIPT.load(shard);
+                INCLUDE_SCRIPT.load(shard);
+            }
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+    
+    /**
+     * call the script once for every segment the offsets belong to
+     * @param script
+     * @param key
+     * @param offset
+     * @param stopOnZero stop calling the rest segments when one segment returns 0
+     * @return the responses of the calls, the segments not called are 0
+     */
+    protected long[] evalSegments(LuaScript script, String key, long[] offset, boolean stopOnZero){
+        Map<String, List<String>> segments = groupBySegment(key, offset);
+        long[] result = new long[segments.size()];
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            int index = 0;
+            for (Map.Entry<String, List<String>> segment : segments.entrySet()) {
+                Jedis shard = jedis.getShard(segment.getKey());
+                Object response = script.eval(shard, Collections.singletonList(segment.getKey()), segment.getValue());
+                result[index] = (Long) response;
+                if(result[index++] == 0 && stopOnZero){
+                    break;
+                }
+            }
+            return result;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+    
+    /**
+     * group the offsets by the segment key, the offsets in the segment are the script args
+     * @param key
+     * @param offset
+     * @return
+     */
+    protected Map<String, List<String>> groupBySegment(String key, long[] offset){
+        Map<String, List<String>> segments = new LinkedHashMap<String, List<String>>();
+        for (long i : offset) {
+            String segmentKey = segmentKey(key, i);
+            List<String> args = segments.get(segmentKey);
+            if(args == null){
+                args = new ArrayList<String>(offset.length);
+                segments.put(segmentKey, args);
+            }
+            args.add(String.valueOf(segmentOffset(i)));
+        }
+        return segments;
+    }
+    
+    /**
+     * add a batch of objects using the specified key, all the setbit commands are sent by pipeline,
+     * and the pipeline is synced every pipelineDepth commands
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] was not in the set before
+     */
+    public boolean[] addAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean[] result = new boolean[bizIds.length];
+        long[][] offsets = batchOffset(bizIds);
+        int batchSize = batchSize();
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, true);
+                for (int i = from; i < to; i++) {
+                    for (long offset : offsets[i]) {
+                        pipeline.append(segmentKey(key, offset), segmentOffset(offset));
+                    }
+                }
+                
+                //setbit返回的是原来的bit值，只要有一个原来是0，说明这个bizId之前不存在
+                boolean[] responses = pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                int index = 0;
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < offsets[i].length; j++) {
+                        if(!responses[index++]){
+                            result[i] = true;
+                        }
+                    }
+                }
+            }
+            failed = false;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD_ALL, System.nanoTime() - start, failed);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Check if a batch of bizIds are part of the set, all the getbit commands are sent by pipeline,
+     * and the pipeline is synced every pipelineDepth commands
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] may be in the set
+     */
+    public boolean[] includeAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean[] result = new boolean[bizIds.length];
+        long[][] offsets = batchOffset(bizIds);
+        int batchSize = batchSize();
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, false);
+                for (int i = from; i < to; i++) {
+                    for (long offset : offsets[i]) {
+                        pipeline.append(segmentKey(key, offset), segmentOffset(offset));
+                    }
+                }
+                
+                boolean[] responses = pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                int index = 0;
+                for (int i = from; i < to; i++) {
+                    boolean contains = true;
+                    for (int j = 0; j < offsets[i].length; j++) {
+                        if(!responses[index++]){
+                            contains = false;
+                        }
+                    }
+                    result[i] = contains;
+                }
+            }
+            failed = false;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE_ALL, System.nanoTime() - start, failed);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * the setbit offsets of the bizId
+     * @param bizId
+     * @return
+     */
+    protected long[] hashOffset(long bizId){
+        return hashAlgorithm.offset(bizId, hashFunctionCount, bitSize, new long[hashFunctionCount]);
+    }
+    
+    /**
+     * the offsets of the bizId sorted and without the duplicated ones,
+     * so the script touches every bit once and in the order of the bits
+     * @param bizId
+     * @return
+     */
+    protected long[] distinctOffset(long bizId){
+        long[] offset = hashOffset(bizId);
+        Arrays.sort(offset);
+        int count = 0;
+        for (int i = 0; i < offset.length; i++) {
+            if(i == 0 || offset[i] != offset[i - 1]){
+                offset[count++] = offset[i];
+            }
+        }
+        return count == offset.length ? offset : Arrays.copyOf(offset, count);
+    }
+    
+    /**
+     * hash all the bizIds before any command is sent
+     * @param bizIds
+     * @return
+     */
+    protected long[][] batchOffset(long[] bizIds){
+        long[][] offsets = new long[bizIds.length][];
+        for (int i = 0; i < bizIds.length; i++) {
+            offsets[i] = hashOffset(bizIds[i]);
+        }
+        return offsets;
+    }
+    
+    /**
+     * how many bizIds can be sent in one pipeline
+     * @return
+     */
+    protected int batchSize(){
+        return Math.max(1, pipelineDepth / Math.max(1, hashFunctionCount));
+    }
+    
+    private static long calcSegmentBits(long bitSize, int segmentCount){
+        long segmentBits = (bitSize + segmentCount - 1) / segmentCount;
+        return (segmentBits + HashUtils.BLOCK_BITS - 1) / HashUtils.BLOCK_BITS * HashUtils.BLOCK_BITS;
+    }
+    
+    /**
+     * the redis key of the segment which the offset belongs to
+     * @param key
+     * @param offset
+     * @return
+     */
+    protected String segmentKey(String key, long offset){
+        if(segmentCount == 1){
+            return key;
+        }
+        return key + ":" + (offset / segmentBits);
+    }
+    
+    /**
+     * the offset in the segment
+     * @param offset
+     * @return
+     */
+    protected long segmentOffset(long offset){
+        return offset % segmentBits;
+    }
+    
+    /**
+     * all the redis keys of the filter
+     * @param key
+     * @return
+     */
+    public List<String> segmentKeys(String key){
+        List<String> keys = new ArrayList<String>(segmentCount);
+        if(segmentCount == 1){
+            keys.add(key);
+            return keys;
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            keys.add(key + ":" + i);
+        }
+        return keys;
+    }
+    
+    /**
+     * count the set bits of all the segments
+     * @param key
+     * @return
+     */
     public long count(String key){
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
-            return jedis.bitcount(key);
+            jedis = getResource();
+            long count = 0;
+            for (String segmentKey : segmentKeys(key)) {
+                count += jedis.bitcount(segmentKey);
+            }
+            return count;
         }finally{
             if(jedis != null){
                 if(connected){
@@ -224,11 +748,91 @@ public class BloomFilter {
         }
     }
     
+    /**
+     * estimate how many bizIds were added from the set bits: -(m / k) * ln(1 - bitcount / m),
+     * see Swamidass, Baldi: Mathematical correction for fingerprint similarity measures
+     * @param key
+     * @return Long.MAX_VALUE if all the bits are set
+     */
+    public long estimateCount(String key){
+        return estimateCountOfBits(count(key));
+    }
+    
+    /**
+     * estimate how many bizIds were added from the count of the set bits, see estimateCount
+     * @param bits
+     * @return Long.MAX_VALUE if all the bits are set
+     */
+    public long estimateCountOfBits(long bits){
+        if(bits >= bitSize){
+            return Long.MAX_VALUE;
+        }
+        return Math.round(-(double) bitSize / hashFunctionCount * Math.log(1 - bits / (double) bitSize));
+    }
+    
+    /**
+     * the false positive probability after n bizIds are added,
+     * see org.olylakers.cBloomfilter.BloomFilter#falsePositiveProbability
+     * @param n
+     * @return
+     */
+    public double getFalsePositiveProbability(long n){
+        return org.olylakers.cBloomfilter.BloomFilter.falsePositiveProbability(n, bitSize, hashFunctionCount);
+    }
+    
+    /**
+     * true if every offset is one bit of the segment strings, so the bits can be read and written directly
+     * by GETBIT/SETBIT/GETRANGE/SETRANGE, the subclasses keeping other values at the offsets return false
+     * @return
+     */
+    public boolean storesBits(){
+        return true;
+    }
+    
+    /**
+     * called by the helpers working on the raw bits of the filter, see storesBits
+     * @throws IllegalArgumentException if the filter does not store bits
+     */
+    void requireBitLayout(){
+        if(!storesBits()){
+            throw new IllegalArgumentException(getClass().getSimpleName() + " does not store one bit per offset");
+        }
+    }
+    
+    /**
+     * called by the helpers borrowing a ShardedJedis of the filter,
+     * the subclasses routing the keys by themselves(ClusterBloomFilter) have no ShardedJedisPool
+     * @throws IllegalArgumentException if the filter has no ShardedJedisPool
+     */
+    void requireShardedPool(){
+        if(pool == null){
+            throw new IllegalArgumentException(getClass().getSimpleName() + " has no ShardedJedisPool");
+        }
+    }
+    
+    /**
+     * borrow a connection from the pool, the time blocked is recorded by the metrics
+     * @return
+     */
+    protected ShardedJedis getResource(){
+        long start = System.nanoTime();
+        ShardedJedis jedis = pool.getResource();
+        metrics.recordPoolWait(System.nanoTime() - start);
+        return jedis;
+    }
+    
+    /**
+     * GET of the whole key decoded as a String, the binary bits are not kept,
+     * use FilterTransfer to copy the bits to a local filter by binary GETRANGE chunks
+     * @param key
+     * @return
+     */
+    @Deprecated
     public String  getRedisData(String key){
         ShardedJedis jedis = null;
         boolean connected = true;
         try {
-            jedis = pool.getResource();
+            jedis = getResource();
             String redisData = jedis.get(key);
             return redisData;
         }finally{
@@ -249,8 +853,8 @@ public class BloomFilter {
      * @param errorRate
      * @return
      */
-    public int calcOptimalM(int maxKey, float errorRate){
-        return (int) Math.ceil(maxKey
+    public long calcOptimalM(long maxKey, float errorRate){
+        return (long) Math.ceil(maxKey
                 * (Math.log(errorRate) / Math.log(0.6185)));
     }
     
@@ -261,7 +865,7 @@ public class BloomFilter {
      * @param maxKey
      * @return
      */
-    public int calcOptimalK(int bitSize, int maxKey){
+    public int calcOptimalK(long bitSize, long maxKey){
         return (int) Math.ceil(Math.log(2) * (bitSize / maxKey));
     }
     
@@ -281,11 +885,11 @@ public class BloomFilter {
         this.timeout = timeout;
     }
 
-    public int getMaxKey() {
+    public long getMaxKey() {
         return maxKey;
     }
 
-    public void setMaxKey(int maxKey) {
+    public void setMaxKey(long maxKey) {
         this.maxKey = maxKey;
     }
 
@@ -305,12 +909,75 @@ public class BloomFilter {
         this.hashFunctionCount = hashFunctionCount;
     }
 
-    public int getBitSize() {
+    public long getBitSize() {
         return bitSize;
     }
 
-    public void setBitSize(int bitSize) {
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * should be set before any bizId is added
+     * @param hashAlgorithm
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        if(bitSize > hashAlgorithm.getMaxBitCount()){
+            throw new IllegalArgumentException(hashAlgorithm + " can not address " + bitSize + " bits");
+        }
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getSegmentBits() {
+        return segmentBits;
+    }
+
+    /**
+     * the segments and the hash algorithm are adjusted to the new bitSize
+     * @param bitSize
+     */
+    public void setBitSize(long bitSize) {
         this.bitSize = bitSize;
+        long minSegmentCount = (bitSize + maxSegmentOffsets() - 1) / maxSegmentOffsets();
+        if(minSegmentCount > segmentCount){
+            segmentCount = (int) minSegmentCount;
+        }
+        this.segmentBits = calcSegmentBits(bitSize, segmentCount);
+        this.hashAlgorithm = HashAlgorithm.forBitSize(hashAlgorithm, bitSize);
+    }
+
+    /**
+     * the max offsets one segment key can hold
+     * @return
+     */
+    protected long maxSegmentOffsets(){
+        return MAX_SEGMENT_BITS;
+    }
+
+    public BloomFilterMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * @param metrics null to record nothing
+     */
+    public void setMetrics(BloomFilterMetrics metrics) {
+        this.metrics = metrics == null ? BloomFilterMetrics.NOOP : metrics;
+    }
+    
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if(pipelineDepth <= 0){
+            throw new IllegalArgumentException("pipelineDepth should be positive");
+        }
+        this.pipelineDepth = pipelineDepth;
     }
 
     /**
@@ -320,8 +987,9 @@ public class BloomFilter {
     public static void main(String[] args) throws InterruptedException {
         // TODO Auto-generated method stub
         
-        BloomFilter bloomFilter = new BloomFilter(hostConfig, 1000, 0.00000001f, (int)Math.pow(2, 31));
-        System.out.println(bloomFilter.getBitSize()/8/1024/2014);
+        BloomFilter bloomFilter = new BloomFilter(hostConfig, 1000, 0.00000001f, (long)Math.pow(2, 31));
+        System.out.println(bloomFilter.getBitSize()/8/1024/1024);
+        System.out.println(bloomFilter.getSegmentCount());
     }
 
 }
@@ -0,0 +1,48 @@
+package org.olylakers.bloomfilter;
+
+/**
+ * The callbacks of the redis BloomFilter for metrics, they are called in the caller thread on every operation,
+ * so an implementation should not block or allocate, see DefaultBloomFilterMetrics.
+ * @author olylakers
+ *
+ */
+public interface BloomFilterMetrics {
+
+    enum Operation {
+        ADD, INCLUDE, ADD_IF_ABSENT, ADD_ALL, INCLUDE_ALL
+    }
+
+    /**
+     * the metrics used when none is set, records nothing
+     */
+    BloomFilterMetrics NOOP = new BloomFilterMetrics() {
+        public void recordOperation(Operation operation, long nanos, boolean failed) {
+        }
+
+        public void recordPoolWait(long nanos) {
+        }
+
+        public void recordPipeline(int commands) {
+        }
+    };
+
+    /**
+     * one public operation of the filter finished
+     * @param operation
+     * @param nanos the time including the pool wait
+     * @param failed true if it threw an exception
+     */
+    void recordOperation(Operation operation, long nanos, boolean failed);
+
+    /**
+     * the time blocked in pool.getResource()
+     * @param nanos
+     */
+    void recordPoolWait(long nanos);
+
+    /**
+     * the commands sent by one pipeline
+     * @param commands
+     */
+    void recordPipeline(int commands);
+}
@@ -0,0 +1,202 @@
+package org.olylakers.bloomfilter;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.olylakers.bloomfilter.BloomFilterMetrics.Operation;
+
+/**
+ * Expose the DefaultBloomFilterMetrics of a redis BloomFilter and the sampled state of one key by JMX.
+ * The add count and percentiles cover add, addWithPipe, addWithScript and addIfAbsent,
+ * the include ones cover include, includeWithPipe and includeWithScript,
+ * addAll and includeAll have their own count and percentile, one per call whatever the count of the bizIds.
+ * The fill ratio comes from the BITCOUNT of all the segments, it is sampled at most once every sampleMillis,
+ * so the JMX polling does not scan the redis strings on every attribute,
+ * the estimated count is BloomFilter#estimateCountOfBits of the sample and the estimated false positive probability
+ * is the formula of getFalsePositiveProbability at the estimated count.
+ * @author olylakers
+ *
+ */
+public class BloomFilterStats implements BloomFilterStatsMBean {
+
+    private final BloomFilter filter;
+    private final String key;
+    private final DefaultBloomFilterMetrics metrics;
+    private final long sampleMillis;
+
+    private volatile long sampledAt;
+    private volatile long sampledBits;
+    private ObjectName name;
+
+    /**
+     * the metrics are set to the filter
+     * @param filter
+     * @param key
+     * @param metrics
+     * @param sampleMillis the min interval between two BITCOUNT scans
+     */
+    public BloomFilterStats(BloomFilter filter, String key, DefaultBloomFilterMetrics metrics, long sampleMillis){
+        filter.requireBitLayout();
+        this.filter = filter;
+        this.key = key;
+        this.metrics = metrics;
+        this.sampleMillis = sampleMillis;
+        filter.setMetrics(metrics);
+    }
+
+    /**
+     * register to the platform MBeanServer as org.olylakers.bloomfilter:type=BloomFilter,key="key"
+     * @return
+     */
+    public synchronized ObjectName register(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("org.olylakers.bloomfilter:type=BloomFilter,key=" + ObjectName.quote(key));
+            server.registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("can not register the stats of " + key, e);
+        }
+    }
+
+    public synchronized void unregister(){
+        if(name == null){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        } catch (JMException e) {
+            throw new IllegalStateException("can not unregister the stats of " + key, e);
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getAddCount() {
+        return adds().getCount();
+    }
+
+    public long getIncludeCount() {
+        return metrics.getLatency(Operation.INCLUDE).getCount();
+    }
+
+    public long getAddAllCount() {
+        return metrics.getLatency(Operation.ADD_ALL).getCount();
+    }
+
+    public long getIncludeAllCount() {
+        return metrics.getLatency(Operation.INCLUDE_ALL).getCount();
+    }
+
+    public long getFailureCount() {
+        long failures = 0;
+        for (Operation operation : Operation.values()) {
+            failures += metrics.getFailures(operation);
+        }
+        return failures;
+    }
+
+    public double getAddP50Micros() {
+        return micros(adds().getPercentile(50));
+    }
+
+    public double getAddP99Micros() {
+        return micros(adds().getPercentile(99));
+    }
+
+    public double getAddP999Micros() {
+        return micros(adds().getPercentile(99.9));
+    }
+
+    public double getIncludeP50Micros() {
+        return micros(metrics.getLatency(Operation.INCLUDE).getPercentile(50));
+    }
+
+    public double getIncludeP99Micros() {
+        return micros(metrics.getLatency(Operation.INCLUDE).getPercentile(99));
+    }
+
+    public double getIncludeP999Micros() {
+        return micros(metrics.getLatency(Operation.INCLUDE).getPercentile(99.9));
+    }
+
+    public double getAddAllP99Micros() {
+        return micros(metrics.getLatency(Operation.ADD_ALL).getPercentile(99));
+    }
+
+    public double getIncludeAllP99Micros() {
+        return micros(metrics.getLatency(Operation.INCLUDE_ALL).getPercentile(99));
+    }
+
+    public double getPoolWaitP99Micros() {
+        return micros(metrics.getPoolWait().getPercentile(99));
+    }
+
+    public double getMeanPipelineSize() {
+        return metrics.getPipelineSizes().getMean();
+    }
+
+    public long getBitSize() {
+        return filter.getBitSize();
+    }
+
+    public long getMaxKey() {
+        return filter.getMaxKey();
+    }
+
+    public double getFillRatio() {
+        return sampleBits() / (double) filter.getBitSize();
+    }
+
+    public long getEstimatedCount() {
+        return filter.estimateCountOfBits(sampleBits());
+    }
+
+    public double getEstimatedFalsePositiveProbability() {
+        long count = getEstimatedCount();
+        return count == Long.MAX_VALUE ? 1 : filter.getFalsePositiveProbability(count);
+    }
+
+    /**
+     * true if more bizIds than maxKey were added, so the false positive probability is above the designed error rate
+     */
+    public boolean isOverCapacity() {
+        return getEstimatedCount() > filter.getMaxKey();
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /**
+     * the set bits of the key, scanned again when the last sample is older than sampleMillis
+     */
+    private long sampleBits(){
+        long now = System.currentTimeMillis();
+        if(sampledAt == 0 || now - sampledAt >= sampleMillis){
+            sampledBits = filter.count(key);
+            sampledAt = now;
+        }
+        return sampledBits;
+    }
+
+    /**
+     * addIfAbsent and addWithScript are recorded as ADD_IF_ABSENT, merge them with ADD
+     */
+    private LatencyHistogram adds(){
+        LatencyHistogram adds = new LatencyHistogram();
+        adds.merge(metrics.getLatency(Operation.ADD));
+        adds.merge(metrics.getLatency(Operation.ADD_IF_ABSENT));
+        return adds;
+    }
+
+    private static double micros(long nanos){
+        return nanos / 1000.0;
+    }
+}
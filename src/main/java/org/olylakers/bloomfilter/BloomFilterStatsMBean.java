@@ -0,0 +1,56 @@
+package org.olylakers.bloomfilter;
+
+/**
+ * The JMX view of one redis BloomFilter key, see BloomFilterStats.
+ * The latencies are in microseconds.
+ * @author olylakers
+ *
+ */
+public interface BloomFilterStatsMBean {
+
+    String getKey();
+
+    long getAddCount();
+
+    long getIncludeCount();
+
+    long getAddAllCount();
+
+    long getIncludeAllCount();
+
+    long getFailureCount();
+
+    double getAddP50Micros();
+
+    double getAddP99Micros();
+
+    double getAddP999Micros();
+
+    double getIncludeP50Micros();
+
+    double getIncludeP99Micros();
+
+    double getIncludeP999Micros();
+
+    double getAddAllP99Micros();
+
+    double getIncludeAllP99Micros();
+
+    double getPoolWaitP99Micros();
+
+    double getMeanPipelineSize();
+
+    long getBitSize();
+
+    long getMaxKey();
+
+    double getFillRatio();
+
+    long getEstimatedCount();
+
+    double getEstimatedFalsePositiveProbability();
+
+    boolean isOverCapacity();
+
+    void resetMetrics();
+}
@@ -0,0 +1,315 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * setbit/getbit/getrange/setrange commands of one batch for a redis cluster, grouped by the master node of their slots,
+ * every node gets one pipeline and the pipelines of diff nodes are synced in parallel, see ShardedBitPipeline.
+ * The commands answered by MOVED are sent again by one pipeline per new node after the slot map is patched,
+ * the commands answered by ASK are sent one by one with ASKING, the commands of a broken connection whose replies
+ * were not read are sent again after the slot map is reloaded, the other responses of the batch are kept.
+ * A command whose reply was lost may have been applied by redis already, then the SETBIT sent again replies 1,
+ * so after a reconnect the "not set before" result of such a command is best-effort.
+ * @author olylakers
+ *
+ */
+class ClusterBitPipeline {
+
+    private final RedisCluster cluster;
+    private final ShardedBitPipeline.Op op;
+    private byte[][] keys = new byte[16][];
+    private byte[][] values;
+    private int[] slots = new int[16];
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int size;
+    private Object[] responses;
+
+    ClusterBitPipeline(RedisCluster cluster, ShardedBitPipeline.Op op){
+        this.cluster = cluster;
+        this.op = op;
+        this.values = op == ShardedBitPipeline.Op.SETRANGE ? new byte[16][] : null;
+    }
+
+    /**
+     * append one setbit/getbit command, the result of it is at the same index of the array returned by sync
+     * @param key
+     * @param offset
+     */
+    void append(String key, long offset){
+        append(key, offset, 0, null);
+    }
+
+    /**
+     * append one getrange command, start and end are the byte offsets
+     */
+    void append(String key, long start, long end){
+        append(key, start, end, null);
+    }
+
+    /**
+     * append one setrange command
+     */
+    void append(String key, long offset, byte[] value){
+        append(key, offset, 0, value);
+    }
+
+    private void append(String key, long start, long end, byte[] value){
+        if(size == keys.length){
+            int capacity = size << 1;
+            byte[][] newKeys = new byte[capacity][];
+            int[] newSlots = new int[capacity];
+            long[] newStarts = new long[capacity];
+            long[] newEnds = new long[capacity];
+            System.arraycopy(keys, 0, newKeys, 0, size);
+            System.arraycopy(slots, 0, newSlots, 0, size);
+            System.arraycopy(starts, 0, newStarts, 0, size);
+            System.arraycopy(ends, 0, newEnds, 0, size);
+            keys = newKeys;
+            slots = newSlots;
+            starts = newStarts;
+            ends = newEnds;
+            if(values != null){
+                byte[][] newValues = new byte[capacity][];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+        }
+        keys[size] = SafeEncoder.encode(key);
+        slots[size] = RedisCluster.slot(keys[size]);
+        starts[size] = start;
+        ends[size] = end;
+        if(values != null){
+            values[size] = value;
+        }
+        size++;
+    }
+
+    int size(){
+        return size;
+    }
+
+    /**
+     * send all the commands and wait for the responses, following the redirects
+     * @param executor used to sync the pipelines of diff nodes in parallel, may be null
+     * @return the bit value of every command, see ShardedBitPipeline#sync
+     */
+    boolean[] sync(ExecutorService executor){
+        responses = new Object[size];
+        int[] pending = new int[size];
+        for (int i = 0; i < size; i++) {
+            pending[i] = i;
+        }
+        int pendingCount = size;
+        for (int attempt = 0; pendingCount > 0; attempt++) {
+            if(attempt > RedisCluster.MAX_REDIRECTS){
+                throw new JedisException(pendingCount + " commands are still redirected after "
+                        + RedisCluster.MAX_REDIRECTS + " attempts");
+            }
+            Map<JedisPool, NodeCommands> nodes = new LinkedHashMap<JedisPool, NodeCommands>();
+            for (int i = 0; i < pendingCount; i++) {
+                JedisPool pool = cluster.node(slots[pending[i]]);
+                NodeCommands commands = nodes.get(pool);
+                if(commands == null){
+                    commands = new NodeCommands(pool);
+                    nodes.put(pool, commands);
+                }
+                commands.add(pending[i]);
+            }
+            if(executor == null || nodes.size() <= 1){
+                for (NodeCommands commands : nodes.values()) {
+                    commands.sync();
+                }
+            }else{
+                syncInParallel(executor, nodes.values());
+            }
+
+            pendingCount = 0;
+            boolean broken = false;
+            for (NodeCommands commands : nodes.values()) {
+                broken |= commands.broken;
+                for (int i = 0; i < commands.redirectCount; i++) {
+                    pending[pendingCount++] = commands.redirects[i];
+                }
+            }
+            if(broken){
+                cluster.refresh();
+            }
+        }
+
+        boolean[] result = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Object response = responses[i];
+            if(response instanceof byte[]){
+                result[i] = ((byte[]) response).length > 0;
+            }else{
+                result[i] = Long.valueOf(1).equals(response);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * the bytes returned by the getrange command at the index, available after sync
+     */
+    byte[] range(int index){
+        Object response = responses[index];
+        return response instanceof byte[] ? (byte[]) response : new byte[0];
+    }
+
+    private void syncInParallel(ExecutorService executor, Iterable<NodeCommands> nodes){
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final NodeCommands commands : nodes) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    commands.sync();
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JedisException(e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException){
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new JedisException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * send the command at the index as a single call, used after ASK
+     */
+    private Object send(Jedis jedis, int index){
+        switch (op) {
+        case SETBIT:
+            return jedis.setbit(keys[index], starts[index], true) ? 1L : 0L;
+        case GETBIT:
+            return jedis.getbit(keys[index], starts[index]) ? 1L : 0L;
+        case SETRANGE:
+            return jedis.setrange(keys[index], starts[index], values[index]);
+        default:
+            return jedis.getrange(keys[index], starts[index], ends[index]);
+        }
+    }
+
+    private class NodeCommands {
+        private final JedisPool pool;
+        private int[] indexes = new int[16];
+        private int count;
+        private int[] redirects;
+        private int redirectCount;
+        private boolean broken;
+
+        NodeCommands(JedisPool pool){
+            this.pool = pool;
+        }
+
+        void add(int index){
+            if(count == indexes.length){
+                int[] newIndexes = new int[count << 1];
+                System.arraycopy(indexes, 0, newIndexes, 0, count);
+                indexes = newIndexes;
+            }
+            indexes[count++] = index;
+        }
+
+        /**
+         * the commands are written to the client directly and the raw replies are read back one by one,
+         * MOVED and a broken connection put the commands into redirects, ASK is followed at once,
+         * after a broken connection only the commands without a reply are put into redirects
+         */
+        void sync(){
+            redirects = new int[count];
+            Jedis jedis = null;
+            boolean connected = true;
+            Object[] replies = new Object[count];
+            int received = 0;
+            try {
+                jedis = pool.getResource();
+                Client client = jedis.getClient();
+                for (int i = 0; i < count; i++) {
+                    int index = indexes[i];
+                    switch (op) {
+                    case SETBIT:
+                        client.setbit(keys[index], starts[index], true);
+                        break;
+                    case GETBIT:
+                        client.getbit(keys[index], starts[index]);
+                        break;
+                    case SETRANGE:
+                        client.setrange(keys[index], starts[index], values[index]);
+                        break;
+                    default:
+                        client.getrange(keys[index], starts[index], ends[index]);
+                        break;
+                    }
+                }
+                for (; received < count; received++) {
+                    try {
+                        replies[received] = client.getOne();
+                    } catch (JedisDataException e) {
+                        replies[received] = e;
+                    }
+                }
+            } catch (JedisConnectionException e) {
+                connected = false;
+                broken = true;
+                System.arraycopy(indexes, received, redirects, 0, count - received);
+                redirectCount = count - received;
+            }finally{
+                if(jedis != null){
+                    if(connected){
+                        pool.returnResource(jedis);
+                    }else{
+                        pool.returnBrokenResource(jedis);
+                    }
+                }
+            }
+
+            for (int i = 0; i < received; i++) {
+                final int index = indexes[i];
+                Object reply = replies[i];
+                if(reply instanceof JedisDataException){
+                    RedisCluster.Redirect redirect = RedisCluster.Redirect.parse((JedisDataException) reply);
+                    if(redirect == null){
+                        throw (JedisDataException) reply;
+                    }
+                    if(redirect.ask){
+                        reply = cluster.execute(redirect.slot, redirect.node, new RedisCluster.Call<Object>() {
+                            public Object call(Jedis jedis) {
+                                return send(jedis, index);
+                            }
+                        });
+                    }else{
+                        cluster.moved(redirect.slot, redirect.node);
+                        redirects[redirectCount++] = index;
+                        continue;
+                    }
+                }
+                responses[index] = reply;
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * BloomFilter based on redis cluster, the hosts are the seed nodes: host1:port1;host2:port2.
+ * The keys are routed by the slot map of the cluster instead of the consistent hashing of ShardedJedisPool,
+ * the commands of one call or batch are grouped by the master node of their slots, so every node gets one pipeline
+ * and add/include/addAll/includeAll take one round trip per node per batch, following MOVED/ASK redirects
+ * without dropping the rest of the batch, see ClusterBitPipeline.
+ * By default the segments key:0, key:1 ... are spread over the slots, so a large filter is spread over the nodes,
+ * and addIfAbsent is atomic in every segment only like the sharded filter.
+ * With hashTag the segments are {key}:0, {key}:1 ..., all in the slot of the key, so addIfAbsent and includeWithScript
+ * check and set the bits of all the segments by one script call atomically, but the whole filter is on one node.
+ * There is no ShardedJedisPool, the helpers borrowing a ShardedJedis of the filter(FilterTransfer, NearCacheBloomFilter,
+ * ScalableBloomFilter ...) reject it.
+ * @author olylakers
+ *
+ */
+public class ClusterBloomFilter extends BloomFilter {
+
+    public static final long DEFAULT_REFRESH_MILLIS = 60 * 1000L;
+
+    /**
+     * KEYS: the segment keys, ARGV: pairs of the index of the key and the offset
+     * set the bits which are not set yet, return 1 if any bit was not set before, otherwise return 0
+     */
+    private static final LuaScript TAGGED_ADD_SCRIPT = new LuaScript(
+            "local added = 0\n" +
+            "for i = 1, #ARGV, 2 do\n" +
+            "    local key = KEYS[tonumber(ARGV[i])]\n" +
+            "    if redis.call('GETBIT', key, ARGV[i + 1]) == 0 then\n" +
+            "        redis.call('SETBIT', key, ARGV[i + 1], 1)\n" +
+            "        added = 1\n" +
+            "    end\n" +
+            "end\n" +
+            "return added");
+
+    /**
+     * KEYS: the segment keys, ARGV: pairs of the index of the key and the offset
+     * return 1 if all the bits are set, otherwise return 0
+     */
+    private static final LuaScript TAGGED_INCLUDE_SCRIPT = new LuaScript(
+            "for i = 1, #ARGV, 2 do\n" +
+            "    if redis.call('GETBIT', KEYS[tonumber(ARGV[i])], ARGV[i + 1]) == 0 then\n" +
+            "        return 0\n" +
+            "    end\n" +
+            "end\n" +
+            "return 1");
+
+    private final RedisCluster cluster;
+    private final boolean hashTag;
+
+    public ClusterBloomFilter(String hosts, int timeout, float errorRate, long maxKey, int segmentCount, boolean hashTag){
+        this(hosts, timeout, errorRate, maxKey, segmentCount, hashTag, DEFAULT_REFRESH_MILLIS);
+    }
+
+    /**
+     * @param hosts the seed nodes
+     * @param timeout
+     * @param errorRate
+     * @param maxKey
+     * @param segmentCount
+     * @param hashTag keep all the segments in the slot of the key
+     * @param refreshMillis the interval of reloading the slot map in the background, 0 to reload on MOVED only
+     */
+    public ClusterBloomFilter(String hosts, int timeout, float errorRate, long maxKey, int segmentCount, boolean hashTag,
+            long refreshMillis){
+        super(errorRate, maxKey, segmentCount);
+        setHosts(hosts);
+        setTimeout(timeout);
+        this.hashTag = hashTag;
+        this.cluster = new RedisCluster(parseShards(hosts, timeout), timeout, refreshMillis);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-bloomfilter-cluster-pipeline-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * close the node pools, the pipeline threads and the slot map refresh
+     */
+    @Override
+    public void destroy(){
+        super.destroy();
+        cluster.destroy();
+    }
+
+    /**
+     * the bits are set by one pipeline per node
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public void add(String key, long bizId){
+        addWithPipe(key, bizId);
+    }
+
+    @Override
+    public void addWithPipe(String key, long bizId){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ClusterBitPipeline pipeline = new ClusterBitPipeline(cluster, ShardedBitPipeline.Op.SETBIT);
+            for (long i : hashOffset(bizId)) {
+                pipeline.append(segmentKey(key, i), segmentOffset(i));
+            }
+            pipeline.sync(executor);
+            metrics.recordPipeline(pipeline.size());
+            failed = false;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * the bits are read by one pipeline per node
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public boolean include(String key, long bizId){
+        return includeWithPipe(key, bizId);
+    }
+
+    @Override
+    public boolean includeWithPipe(String key, long bizId){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ClusterBitPipeline pipeline = new ClusterBitPipeline(cluster, ShardedBitPipeline.Op.GETBIT);
+            for (long i : hashOffset(bizId)) {
+                pipeline.append(segmentKey(key, i), segmentOffset(i));
+            }
+            boolean[] responses = pipeline.sync(executor);
+            metrics.recordPipeline(pipeline.size());
+            failed = false;
+            for (boolean contains : responses) {
+                if(!contains){
+                    return false;
+                }
+            }
+            return true;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * with hashTag all the bits are checked by one script call, otherwise one call per segment
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public boolean includeWithScript(String key, long bizId){
+        if(!hashTag || getSegmentCount() == 1){
+            return super.includeWithScript(key, bizId);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean contains = evalTagged(TAGGED_INCLUDE_SCRIPT, key, distinctOffset(bizId)) == 1;
+            failed = false;
+            return contains;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * with hashTag the check and add of all the segments are atomic by one script call,
+     * otherwise they are atomic in every segment only
+     * @param key
+     * @param bizId
+     * @return true if the bizId was not in the set before
+     */
+    @Override
+    public boolean addIfAbsent(String key, long bizId){
+        if(!hashTag || getSegmentCount() == 1){
+            return super.addIfAbsent(key, bizId);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean added = evalTagged(TAGGED_ADD_SCRIPT, key, distinctOffset(bizId)) == 1;
+            failed = false;
+            return added;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD_IF_ABSENT, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * call the script with the segment keys the offsets belong to, all of them are in the slot of the hash tag
+     */
+    private long evalTagged(final LuaScript script, String key, long[] offset){
+        Map<String, List<String>> segments = groupBySegment(key, offset);
+        final List<String> keys = new ArrayList<String>(segments.keySet());
+        final List<String> args = new ArrayList<String>(offset.length * 2);
+        int index = 1;
+        for (List<String> offsets : segments.values()) {
+            for (String o : offsets) {
+                args.add(String.valueOf(index));
+                args.add(o);
+            }
+            index++;
+        }
+        return cluster.execute(keys.get(0), new RedisCluster.Call<Long>() {
+            public Long call(Jedis jedis) {
+                return (Long) script.eval(jedis, keys, args);
+            }
+        });
+    }
+
+    /**
+     * call the script once for every segment on the node of its slot
+     */
+    @Override
+    protected long[] evalSegments(final LuaScript script, String key, long[] offset, boolean stopOnZero){
+        Map<String, List<String>> segments = groupBySegment(key, offset);
+        long[] result = new long[segments.size()];
+        int index = 0;
+        for (final Map.Entry<String, List<String>> segment : segments.entrySet()) {
+            result[index] = cluster.execute(segment.getKey(), new RedisCluster.Call<Long>() {
+                public Long call(Jedis jedis) {
+                    return (Long) script.eval(jedis, Collections.singletonList(segment.getKey()), segment.getValue());
+                }
+            });
+            if(result[index++] == 0 && stopOnZero){
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * add a batch of objects, the setbit commands are sent by one pipeline per node,
+     * and the pipelines are synced every pipelineDepth commands
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] was not in the set before,
+     *         best-effort for the commands whose replies were lost by a broken connection, see ClusterBitPipeline
+     */
+    @Override
+    public boolean[] addAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean[] result = new boolean[bizIds.length];
+            long[][] offsets = batchOffset(bizIds);
+            int batchSize = batchSize();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ClusterBitPipeline pipeline = new ClusterBitPipeline(cluster, ShardedBitPipeline.Op.SETBIT);
+                for (int i = from; i < to; i++) {
+                    for (long offset : offsets[i]) {
+                        pipeline.append(segmentKey(key, offset), segmentOffset(offset));
+                    }
+                }
+
+                boolean[] responses = pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                int index = 0;
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < offsets[i].length; j++) {
+                        if(!responses[index++]){
+                            result[i] = true;
+                        }
+                    }
+                }
+            }
+            failed = false;
+            return result;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD_ALL, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Check if a batch of bizIds are part of the set, the getbit commands are sent by one pipeline per node,
+     * and the pipelines are synced every pipelineDepth commands
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] may be in the set
+     */
+    @Override
+    public boolean[] includeAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean[] result = new boolean[bizIds.length];
+            long[][] offsets = batchOffset(bizIds);
+            int batchSize = batchSize();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ClusterBitPipeline pipeline = new ClusterBitPipeline(cluster, ShardedBitPipeline.Op.GETBIT);
+                for (int i = from; i < to; i++) {
+                    for (long offset : offsets[i]) {
+                        pipeline.append(segmentKey(key, offset), segmentOffset(offset));
+                    }
+                }
+
+                boolean[] responses = pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                int index = 0;
+                for (int i = from; i < to; i++) {
+                    boolean contains = true;
+                    for (int j = 0; j < offsets[i].length; j++) {
+                        if(!responses[index++]){
+                            contains = false;
+                        }
+                    }
+                    result[i] = contains;
+                }
+            }
+            failed = false;
+            return result;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE_ALL, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * load all the lua scripts into every master node
+     */
+    @Override
+    public void loadScripts(){
+        for (JedisPool pool : cluster.masters()) {
+            Jedis jedis = null;
+            boolean connected = true;
+            try {
+                jedis = pool.getResource();
+                ADD_SCRIPT.load(jedis);
+                INCLUDE_SCRIPT.load(jedis);
+                TAGGED_ADD_SCRIPT.load(jedis);
+                TAGGED_INCLUDE_SCRIPT.load(jedis);
+            }finally{
+                if(jedis != null){
+                    if(connected){
+                        pool.returnResource(jedis);
+                    }else{
+                        pool.returnBrokenResource(jedis);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * count the set bits of all the segments
+     * @param key
+     * @return
+     */
+    @Override
+    public long count(String key){
+        long count = 0;
+        for (final String segmentKey : segmentKeys(key)) {
+            count += cluster.execute(segmentKey, new RedisCluster.Call<Long>() {
+                public Long call(Jedis jedis) {
+                    return jedis.bitcount(segmentKey);
+                }
+            });
+        }
+        return count;
+    }
+
+    @Override
+    protected String segmentKey(String key, long offset){
+        if(getSegmentCount() == 1 || !hashTag){
+            return super.segmentKey(key, offset);
+        }
+        return "{" + key + "}:" + (offset / getSegmentBits());
+    }
+
+    @Override
+    public List<String> segmentKeys(String key){
+        if(getSegmentCount() == 1 || !hashTag){
+            return super.segmentKeys(key);
+        }
+        List<String> keys = new ArrayList<String>(getSegmentCount());
+        for (int i = 0; i < getSegmentCount(); i++) {
+            keys.add("{" + key + "}:" + i);
+        }
+        return keys;
+    }
+
+    /**
+     * GET of the key on the node of its slot, see BloomFilter#getRedisData
+     * @param key
+     * @return
+     */
+    @Deprecated
+    @Override
+    public String getRedisData(final String key){
+        return cluster.execute(key, new RedisCluster.Call<String>() {
+            public String call(Jedis jedis) {
+                return jedis.get(key);
+            }
+        });
+    }
+
+    public boolean isHashTag() {
+        return hashTag;
+    }
+}
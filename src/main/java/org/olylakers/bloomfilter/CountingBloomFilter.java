@@ -0,0 +1,386 @@
+package org.olylakers.bloomfilter;
+
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Counting BloomFilter based on redis, every offset is a 4 bits saturating counter read and written by BITFIELD,
+ * the counter i is at the bits [4i, 4i+4) of the segment, so it supports remove and approximateCount.
+ * All the k counters of one bizId in one segment are changed by one BITFIELD command inside a lua script,
+ * the script is needed because jedis does not send BITFIELD, and remove/addIfAbsent are conditional.
+ * Like org.olylakers.cBloomfilter.CountingBloomFilter, a counter stops at 15 and is never decreased after that.
+ * The bitSize is the count of the counters, sized by org.olylakers.cBloomfilter.CountingBloomFilter#optimalM/optimalK,
+ * a redis string holds 2^30 counters at most, larger filters are split into more segments.
+ * Requires redis 3.2+ for BITFIELD.
+ * @author olylakers
+ *
+ */
+public class CountingBloomFilter extends BloomFilter {
+
+    private static final long BUCKET_MAX_VALUE = 15;
+
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: counter offsets
+     * increase all the counters by 1, stop at 15, return 1 if any counter was 0 before
+     */
+    private static final LuaScript ADD_SCRIPT = new LuaScript(
+            "local args = {'OVERFLOW', 'SAT'}\n" +
+            "for i = 1, #ARGV do\n" +
+            "    args[#args + 1] = 'INCRBY'\n" +
+            "    args[#args + 1] = 'u4'\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "    args[#args + 1] = 1\n" +
+            "end\n" +
+            "local values = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "for i = 1, #values do\n" +
+            "    if values[i] == 1 then\n" +
+            "        return 1\n" +
+            "    end\n" +
+            "end\n" +
+            "return 0");
+
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: counter offsets
+     * return the min value of the counters
+     */
+    private static final LuaScript COUNT_SCRIPT = new LuaScript(
+            "local args = {}\n" +
+            "for i = 1, #ARGV do\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = 'u4'\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "end\n" +
+            "local values = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "local min = " + BUCKET_MAX_VALUE + "\n" +
+            "for i = 1, #values do\n" +
+            "    if values[i] < min then\n" +
+            "        min = values[i]\n" +
+            "    end\n" +
+            "end\n" +
+            "return min");
+
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: counter offsets
+     * if any counter is 0 return 0 and write nothing,
+     * otherwise decrease the counters which are less than 15 by 1 and return 1
+     */
+    private static final LuaScript REMOVE_SCRIPT = new LuaScript(
+            "local args = {}\n" +
+            "for i = 1, #ARGV do\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = 'u4'\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "end\n" +
+            "local values = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "args = {'OVERFLOW', 'SAT'}\n" +
+            "for i = 1, #values do\n" +
+            "    if values[i] == 0 then\n" +
+            "        return 0\n" +
+            "    end\n" +
+            "    if values[i] < " + BUCKET_MAX_VALUE + " then\n" +
+            "        args[#args + 1] = 'INCRBY'\n" +
+            "        args[#args + 1] = 'u4'\n" +
+            "        args[#args + 1] = '#' .. ARGV[i]\n" +
+            "        args[#args + 1] = -1\n" +
+            "    end\n" +
+            "end\n" +
+            "if #args > 2 then\n" +
+            "    redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "end\n" +
+            "return 1");
+
+    /**
+     * KEYS[1]: bloomfilter key, ARGV: counter offsets
+     * if no counter is 0 return 0 and write nothing, otherwise increase all the counters by 1 and return 1
+     */
+    private static final LuaScript ADD_IF_ABSENT_SCRIPT = new LuaScript(
+            "local args = {}\n" +
+            "for i = 1, #ARGV do\n" +
+            "    args[#args + 1] = 'GET'\n" +
+            "    args[#args + 1] = 'u4'\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "end\n" +
+            "local values = redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "local absent = false\n" +
+            "for i = 1, #values do\n" +
+            "    if values[i] == 0 then\n" +
+            "        absent = true\n" +
+            "    end\n" +
+            "end\n" +
+            "if not absent then\n" +
+            "    return 0\n" +
+            "end\n" +
+            "args = {'OVERFLOW', 'SAT'}\n" +
+            "for i = 1, #ARGV do\n" +
+            "    args[#args + 1] = 'INCRBY'\n" +
+            "    args[#args + 1] = 'u4'\n" +
+            "    args[#args + 1] = '#' .. ARGV[i]\n" +
+            "    args[#args + 1] = 1\n" +
+            "end\n" +
+            "redis.call('BITFIELD', KEYS[1], unpack(args))\n" +
+            "return 1");
+
+    public CountingBloomFilter(String hosts, int timeout, float errorRate, long maxKey){
+        this(hosts, timeout, errorRate, maxKey, 1);
+    }
+
+    public CountingBloomFilter(String hosts, int timeout, float errorRate, long maxKey, int segmentCount){
+        super(hosts, timeout, errorRate, maxKey, segmentCount);
+        long bitSize = org.olylakers.cBloomfilter.CountingBloomFilter.optimalM(maxKey, errorRate);
+        setBitSize(bitSize);
+        setHashFunctionCount(org.olylakers.cBloomfilter.CountingBloomFilter.optimalK(maxKey, bitSize));
+    }
+
+    /**
+     * every counter takes 4 bits of the redis string
+     */
+    @Override
+    public boolean storesBits(){
+        return false;
+    }
+
+    @Override
+    protected long maxSegmentOffsets(){
+        return MAX_SEGMENT_BITS / 4;
+    }
+
+    /**
+     * add one object using the specified key, the counters are increased by one BITFIELD command per segment
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public void add(String key, long bizId){
+        addCounters(key, hashOffset(bizId));
+    }
+
+    @Override
+    public void addWithPipe(String key, long bizId){
+        add(key, bizId);
+    }
+
+    @Override
+    public void addWithScript(String key, long bizId){
+        add(key, bizId);
+    }
+
+    /**
+     * Check if a bizId is part of the set
+     * @param key
+     * @param bizId
+     */
+    @Override
+    public boolean include(String key, long bizId){
+        return approximateCount(key, bizId) > 0;
+    }
+
+    @Override
+    public boolean includeWithPipe(String key, long bizId){
+        return include(key, bizId);
+    }
+
+    @Override
+    public boolean includeWithScript(String key, long bizId){
+        return include(key, bizId);
+    }
+
+    /**
+     * the min value of the counters of the bizId, it is how many times the bizId was added at most
+     * @param key
+     * @param bizId
+     * @return
+     */
+    public int approximateCount(String key, long bizId){
+        long min = BUCKET_MAX_VALUE;
+        for (long count : evalSegments(COUNT_SCRIPT, key, hashOffset(bizId), true)) {
+            min = Math.min(min, count);
+        }
+        return (int) min;
+    }
+
+    /**
+     * remove one object if it is part of the set, the counters less than 15 are decreased by 1,
+     * the check and remove are atomic if the filter has only one segment,
+     * otherwise the bizId is checked in all the segments first, and every segment is checked again when removing
+     * @param key
+     * @param bizId
+     * @return true if the bizId was part of the set
+     */
+    public boolean remove(String key, long bizId){
+        long[] offset = hashOffset(bizId);
+        if(getSegmentCount() > 1 && !include(key, bizId)){
+            return false;
+        }
+        for (long removed : evalSegments(REMOVE_SCRIPT, key, offset, true)) {
+            if(removed == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * add one object if it is not part of the set,
+     * the check and add are atomic if the filter has only one segment
+     * @param key
+     * @param bizId
+     * @return true if the bizId was not in the set before
+     */
+    @Override
+    public boolean addIfAbsent(String key, long bizId){
+        long[] offset = hashOffset(bizId);
+        if(getSegmentCount() == 1){
+            return evalSegments(ADD_IF_ABSENT_SCRIPT, key, offset, false)[0] == 1;
+        }
+        if(include(key, bizId)){
+            return false;
+        }
+        addCounters(key, offset);
+        return true;
+    }
+
+    /**
+     * add a batch of objects using the specified key, one script call per bizId and segment,
+     * the script calls are sent by pipeline and the pipeline is synced every pipelineDepth counters
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] was not in the set before
+     */
+    @Override
+    public boolean[] addAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            //ADD_SCRIPT返回1说明有counter原来是0，这个bizId之前不存在
+            long[][] values = evalAll(ADD_SCRIPT, key, bizIds);
+            boolean[] result = new boolean[bizIds.length];
+            for (int i = 0; i < bizIds.length; i++) {
+                for (long added : values[i]) {
+                    if(added == 1){
+                        result[i] = true;
+                    }
+                }
+            }
+            failed = false;
+            return result;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.ADD_ALL, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Check if a batch of bizIds are part of the set, one script call per bizId and segment,
+     * the script calls are sent by pipeline and the pipeline is synced every pipelineDepth counters
+     * @param key
+     * @param bizIds
+     * @return result[i] is true if bizIds[i] may be in the set
+     */
+    @Override
+    public boolean[] includeAll(String key, long[] bizIds){
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long[][] values = evalAll(COUNT_SCRIPT, key, bizIds);
+            boolean[] result = new boolean[bizIds.length];
+            for (int i = 0; i < bizIds.length; i++) {
+                boolean contains = true;
+                for (long count : values[i]) {
+                    if(count == 0){
+                        contains = false;
+                    }
+                }
+                result[i] = contains;
+            }
+            failed = false;
+            return result;
+        }finally{
+            metrics.recordOperation(BloomFilterMetrics.Operation.INCLUDE_ALL, System.nanoTime() - start, failed);
+        }
+    }
+
+    @Override
+    public void loadScripts(){
+        super.loadScripts();
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (Jedis shard : jedis.getAllShards()) {
+                ADD_SCRIPT.load(shard);
+                COUNT_SCRIPT.load(shard);
+                REMOVE_SCRIPT.load(shard);
+                ADD_IF_ABSENT_SCRIPT.load(shard);
+            }
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * call the script once per bizId and segment by pipeline
+     * @return the replies of the segments of bizIds[i] at values[i]
+     */
+    private long[][] evalAll(LuaScript script, String key, long[] bizIds){
+        long[][] values = new long[bizIds.length][];
+        long[][] offsets = batchOffset(bizIds);
+        int batchSize = batchSize();
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = getResource();
+            for (int from = 0; from < bizIds.length; from += batchSize) {
+                int to = Math.min(from + batchSize, bizIds.length);
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, script);
+                for (int i = from; i < to; i++) {
+                    Map<String, List<String>> segments = groupBySegment(key, offsets[i]);
+                    values[i] = new long[segments.size()];
+                    for (Map.Entry<String, List<String>> segment : segments.entrySet()) {
+                        pipeline.append(segment.getKey(), segment.getValue());
+                    }
+                }
+
+                pipeline.sync(executor);
+                metrics.recordPipeline(pipeline.size());
+                int index = 0;
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < values[i].length; j++) {
+                        values[i][j] = pipeline.value(index++);
+                    }
+                }
+            }
+            return values;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    pool.returnResource(jedis);
+                }else{
+                    pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if any counter was 0 before
+     */
+    private boolean addCounters(String key, long[] offset){
+        for (long added : evalSegments(ADD_SCRIPT, key, offset, false)) {
+            if(added == 1){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,258 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Cuckoo filter based on redis, see org.olylakers.cBloomfilter.CuckooFilter.
+ * The table is one redis string, the slot i of the bucket b is the BITFIELD u{fingerprintBits} #(4b + i),
+ * an empty slot is 0. The hash, fingerprint and first bucket are calculated locally by the same functions
+ * as the local filter, the lua scripts calculate the alternate bucket by the bit library,
+ * so the kicks of add run inside redis and add/remove are atomic.
+ * Unlike the redis CountingBloomFilter, remove never stops working because of saturated counters,
+ * but it should only be called with bizIds that were added.
+ * The table can not be larger than MAX_SEGMENT_BITS.
+ * Requires redis 3.2+ for BITFIELD.
+ * @author olylakers
+ *
+ */
+public class CuckooFilter {
+
+    /**
+     * KEYS[1]: table key, ARGV[1]: bitfield type, ARGV[2]: bucket mask, ARGV[3]: fingerprint, ARGV[4]: first bucket
+     */
+    private static final String FUNCTIONS =
+            "local key = KEYS[1]\n" +
+            "local type = ARGV[1]\n" +
+            "local mask = tonumber(ARGV[2])\n" +
+            "local fp = tonumber(ARGV[3])\n" +
+            "local i1 = tonumber(ARGV[4])\n" +
+            "local function alt(b, f)\n" +
+            "    local h = f\n" +
+            "    h = bit.bxor(h, bit.lshift(h, 13))\n" +
+            "    h = bit.bxor(h, bit.rshift(h, 17))\n" +
+            "    h = bit.bxor(h, bit.lshift(h, 5))\n" +
+            "    return bit.bxor(b, bit.band(h, mask))\n" +
+            "end\n" +
+            "local function bucket(b)\n" +
+            "    local args = {}\n" +
+            "    for s = 0, " + (org.olylakers.cBloomfilter.CuckooFilter.BUCKET_SIZE - 1) + " do\n" +
+            "        args[#args + 1] = 'GET'\n" +
+            "        args[#args + 1] = type\n" +
+            "        args[#args + 1] = '#' .. (b * " + org.olylakers.cBloomfilter.CuckooFilter.BUCKET_SIZE + " + s)\n" +
+            "    end\n" +
+            "    return redis.call('BITFIELD', key, unpack(args))\n" +
+            "end\n" +
+            "local function set(b, s, f)\n" +
+            "    redis.call('BITFIELD', key, 'SET', type, '#' .. (b * " + org.olylakers.cBloomfilter.CuckooFilter.BUCKET_SIZE + " + s), f)\n" +
+            "end\n" +
+            "local function insert(b, f)\n" +
+            "    local values = bucket(b)\n" +
+            "    for s = 1, #values do\n" +
+            "        if values[s] == 0 then\n" +
+            "            set(b, s - 1, f)\n" +
+            "            return true\n" +
+            "        end\n" +
+            "    end\n" +
+            "    return false\n" +
+            "end\n" +
+            "local i2 = alt(i1, fp)\n";
+
+    /**
+     * ARGV[5]: max kicks, ARGV[6]: random seed
+     * put the fingerprint into one of its buckets, kick random fingerprints to their other bucket if both are full,
+     * restore the kicked fingerprints and return 0 if it still does not fit after max kicks, otherwise return 1
+     */
+    private static final LuaScript ADD_SCRIPT = new LuaScript(FUNCTIONS +
+            "if insert(i1, fp) or insert(i2, fp) then\n" +
+            "    return 1\n" +
+            "end\n" +
+            "math.randomseed(tonumber(ARGV[6]))\n" +
+            "local path = {}\n" +
+            "local b = i1\n" +
+            "if math.random(2) == 2 then\n" +
+            "    b = i2\n" +
+            "end\n" +
+            "local victim = fp\n" +
+            "for n = 1, tonumber(ARGV[5]) do\n" +
+            "    local s = math.random(" + org.olylakers.cBloomfilter.CuckooFilter.BUCKET_SIZE + ") - 1\n" +
+            "    local old = bucket(b)[s + 1]\n" +
+            "    set(b, s, victim)\n" +
+            "    path[n] = {b, s, old}\n" +
+            "    victim = old\n" +
+            "    b = alt(b, victim)\n" +
+            "    if insert(b, victim) then\n" +
+            "        return 1\n" +
+            "    end\n" +
+            "end\n" +
+            "for n = #path, 1, -1 do\n" +
+            "    set(path[n][1], path[n][2], path[n][3])\n" +
+            "end\n" +
+            "return 0");
+
+    /**
+     * clear one slot holding the fingerprint, return 1 if found
+     */
+    private static final LuaScript REMOVE_SCRIPT = new LuaScript(FUNCTIONS +
+            "for _, b in ipairs({i1, i2}) do\n" +
+            "    local values = bucket(b)\n" +
+            "    for s = 1, #values do\n" +
+            "        if values[s] == fp then\n" +
+            "            set(b, s - 1, 0)\n" +
+            "            return 1\n" +
+            "        end\n" +
+            "    end\n" +
+            "end\n" +
+            "return 0");
+
+    /**
+     * return the count of the slots holding the fingerprint in both buckets
+     */
+    private static final LuaScript COUNT_SCRIPT = new LuaScript(FUNCTIONS +
+            "local count = 0\n" +
+            "local buckets = {i1}\n" +
+            "if i2 ~= i1 then\n" +
+            "    buckets[2] = i2\n" +
+            "end\n" +
+            "for _, b in ipairs(buckets) do\n" +
+            "    local values = bucket(b)\n" +
+            "    for s = 1, #values do\n" +
+            "        if values[s] == fp then\n" +
+            "            count = count + 1\n" +
+            "        end\n" +
+            "    end\n" +
+            "end\n" +
+            "return count");
+
+    private final BloomFilter filter;
+    private final String key;
+    private final int fingerprintBits;
+    private final int bucketMask;
+    private final Random random = new Random();
+
+    /**
+     * @param filter provides the redis connections only, its size is not used
+     * @param key
+     * @param capacity
+     * @param errorRate
+     */
+    public CuckooFilter(BloomFilter filter, String key, long capacity, double errorRate){
+        filter.requireShardedPool();
+        if(capacity <= 0 || errorRate <= 0 || errorRate >= 1){
+            throw new IllegalArgumentException("capacity should be positive and errorRate should be in (0, 1)");
+        }
+        this.filter = filter;
+        this.key = key;
+        this.fingerprintBits = org.olylakers.cBloomfilter.CuckooFilter.optimalFingerprintBits(errorRate);
+        int bucketCount = org.olylakers.cBloomfilter.CuckooFilter.optimalBucketCount(capacity);
+        this.bucketMask = bucketCount - 1;
+        long bitSize = (long) bucketCount * org.olylakers.cBloomfilter.CuckooFilter.BUCKET_SIZE * fingerprintBits;
+        if(bitSize > BloomFilter.MAX_SEGMENT_BITS){
+            throw new IllegalArgumentException("the filter needs " + bitSize + " bits, more than one redis string");
+        }
+    }
+
+    /**
+     * @param bizId
+     * @return false if the filter is full, the table is not changed
+     */
+    public boolean add(long bizId){
+        List<String> args = args(bizId);
+        args.add(String.valueOf(org.olylakers.cBloomfilter.CuckooFilter.MAX_KICKS));
+        args.add(String.valueOf(random.nextInt()));
+        return eval(ADD_SCRIPT, args) == 1;
+    }
+
+    /**
+     * remove one bizId which was added, removing a bizId not added may remove the fingerprint of another bizId
+     * @param bizId
+     * @return true if the fingerprint was found
+     */
+    public boolean remove(long bizId){
+        return eval(REMOVE_SCRIPT, args(bizId)) == 1;
+    }
+
+    public boolean include(long bizId){
+        return approximateCount(bizId) > 0;
+    }
+
+    /**
+     * the count of the slots holding the fingerprint of the bizId,
+     * it is how many times the bizId was added at most
+     * @param bizId
+     * @return
+     */
+    public int approximateCount(long bizId){
+        return (int) eval(COUNT_SCRIPT, args(bizId));
+    }
+
+    public void loadScripts(){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            for (Jedis shard : jedis.getAllShards()) {
+                ADD_SCRIPT.load(shard);
+                REMOVE_SCRIPT.load(shard);
+                COUNT_SCRIPT.load(shard);
+            }
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * the fingerprint is sent unsigned, BITFIELD u32 returns it unsigned too
+     */
+    private List<String> args(long bizId){
+        long hash = org.olylakers.cBloomfilter.CuckooFilter.hash(bizId);
+        int fingerprint = org.olylakers.cBloomfilter.CuckooFilter.fingerprint(hash, fingerprintBits);
+        List<String> args = new ArrayList<String>(6);
+        args.add("u" + fingerprintBits);
+        args.add(String.valueOf(bucketMask));
+        args.add(String.valueOf(fingerprint & 0xFFFFFFFFL));
+        args.add(String.valueOf((int) hash & bucketMask));
+        return args;
+    }
+
+    private long eval(LuaScript script, List<String> args){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            Jedis shard = jedis.getShard(key);
+            return (Long) script.eval(shard, Collections.singletonList(key), args);
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getFingerprintBits() {
+        return fingerprintBits;
+    }
+
+    public int getBucketCount() {
+        return bucketMask + 1;
+    }
+}
@@ -0,0 +1,73 @@
+package org.olylakers.bloomfilter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The default BloomFilterMetrics, one LatencyHistogram per operation, for the pool wait and for the pipeline sizes,
+ * and a failure counter per operation, all lock-free and without allocation per call.
+ * The latencies are recorded in nanoseconds, the histograms are cumulative until reset.
+ * @author olylakers
+ *
+ */
+public class DefaultBloomFilterMetrics implements BloomFilterMetrics {
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final AtomicLongArray failures = new AtomicLongArray(Operation.values().length);
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private final LatencyHistogram pipelineSizes = new LatencyHistogram();
+
+    public DefaultBloomFilterMetrics(){
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public void recordOperation(Operation operation, long nanos, boolean failed) {
+        latencies[operation.ordinal()].record(nanos);
+        if(failed){
+            failures.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    public void recordPoolWait(long nanos) {
+        poolWait.record(nanos);
+    }
+
+    public void recordPipeline(int commands) {
+        pipelineSizes.record(commands);
+    }
+
+    /**
+     * the latencies of the operation in nanoseconds, the count of it is the count of the operation
+     * @param operation
+     * @return
+     */
+    public LatencyHistogram getLatency(Operation operation){
+        return latencies[operation.ordinal()];
+    }
+
+    public long getFailures(Operation operation){
+        return failures.get(operation.ordinal());
+    }
+
+    /**
+     * the time blocked in pool.getResource() in nanoseconds
+     * @return
+     */
+    public LatencyHistogram getPoolWait(){
+        return poolWait;
+    }
+
+    public LatencyHistogram getPipelineSizes(){
+        return pipelineSizes;
+    }
+
+    public void reset(){
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i].reset();
+            failures.set(i, 0);
+        }
+        poolWait.reset();
+        pipelineSizes.reset();
+    }
+}
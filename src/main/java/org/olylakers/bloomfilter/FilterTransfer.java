@@ -0,0 +1,256 @@
+package org.olylakers.bloomfilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Copy the bits between a redis BloomFilter and a local org.olylakers.cBloomfilter.BloomFilter,
+ * so a filter built offline by the fast local adds can be pushed to redis, and a local filter can be warmed up from redis.
+ * The bits are moved by binary GETRANGE/SETRANGE of chunkBytes, pipelined by windowsPerSync windows per round,
+ * the windows of diff shards are synced in parallel by the executor of the filter.
+ * The two filters must have the same bit size, hash function count and hash algorithm, see newLocalFilter,
+ * and both or none of them must be blocked.
+ * The byte i of the redis string and the byte i of the local words hold the same 8 offsets,
+ * only the bit order in the byte is reversed: redis keeps the offset o at the mask 0x80 >>> (o & 7),
+ * the local BitArray at 1 << (o & 7).
+ * The byte positions below are the positions in the local words, the redis segments are concatenated,
+ * every transfer can be resumed at the last position reported to the listener.
+ * @author olylakers
+ *
+ */
+public class FilterTransfer {
+
+    /**
+     * called after every round of windows
+     */
+    public interface ProgressListener {
+        /**
+         * @param position the bytes done, the transfer can be resumed from it
+         * @param total the bytes of the filter
+         */
+        void onProgress(long position, long total);
+    }
+
+    private final BloomFilter filter;
+    private int chunkBytes = 1024 * 1024;
+    private int windowsPerSync = 8;
+
+    public FilterTransfer(BloomFilter filter){
+        filter.requireBitLayout();
+        filter.requireShardedPool();
+        this.filter = filter;
+    }
+
+    /**
+     * a new empty local filter which can be copied from and to the redis filter
+     * @return
+     */
+    public org.olylakers.cBloomfilter.BloomFilter newLocalFilter(){
+        org.olylakers.cBloomfilter.BitArray bits = org.olylakers.cBloomfilter.BitArray.heap(filter.getBitSize());
+        if(filter instanceof BlockedBloomFilter){
+            return new org.olylakers.cBloomfilter.BlockedBloomFilter(bits, filter.getHashFunctionCount());
+        }
+        org.olylakers.cBloomfilter.BloomFilter local = new org.olylakers.cBloomfilter.BloomFilter(bits, filter.getHashFunctionCount());
+        local.setHashAlgorithm(filter.getHashAlgorithm());
+        return local;
+    }
+
+    /**
+     * copy the redis filter into the local filter, the local bits are overwritten
+     * @param key
+     * @param local
+     * @param position the byte to start from, 0 or the last position reported to the listener
+     * @param listener may be null
+     * @return the bytes of the filter
+     */
+    public long exportTo(String key, org.olylakers.cBloomfilter.BloomFilter local, long position, ProgressListener listener){
+        checkCompatible(local);
+        org.olylakers.cBloomfilter.BitArray bits = local.getBitArray();
+        long total = bits.wordCount() << 3;
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            while (position < total) {
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, ShardedBitPipeline.Op.GETRANGE);
+                long[] starts = new long[windowsPerSync];
+                int[] lengths = new int[windowsPerSync];
+                long next = position;
+                for (int i = 0; i < windowsPerSync && next < total; i++) {
+                    lengths[i] = windowBytes(next, total);
+                    starts[i] = next;
+                    pipeline.append(filter.segmentKey(key, next << 3), filter.segmentOffset(next << 3) >>> 3,
+                            (filter.segmentOffset(next << 3) >>> 3) + lengths[i] - 1);
+                    next += lengths[i];
+                }
+                pipeline.sync(filter.executor);
+                for (int i = 0; i < pipeline.size(); i++) {
+                    writeLocal(bits, starts[i], lengths[i], pipeline.range(i));
+                }
+                position = next;
+                if(listener != null){
+                    listener.onProgress(position, total);
+                }
+            }
+            return total;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * copy the local filter into redis, the redis bits are overwritten window by window and the keys are never deleted,
+     * so include on the redis filter never sees an empty or truncated filter during the import,
+     * only a mix of the old and the new windows, the windows of all 0 are not sent to the segment keys not existing yet
+     * @param local
+     * @param key
+     * @param position the byte to start from, 0 or the last position reported to the listener
+     * @param listener may be null
+     * @return the bytes of the filter
+     */
+    public long importFrom(org.olylakers.cBloomfilter.BloomFilter local, String key, long position, ProgressListener listener){
+        checkCompatible(local);
+        org.olylakers.cBloomfilter.BitArray bits = local.getBitArray();
+        long total = bits.wordCount() << 3;
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            Set<String> existing = new HashSet<String>();
+            for (String segmentKey : filter.segmentKeys(key)) {
+                if(jedis.exists(segmentKey)){
+                    existing.add(segmentKey);
+                }
+            }
+            while (position < total) {
+                ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, ShardedBitPipeline.Op.SETRANGE);
+                long next = position;
+                for (int i = 0; i < windowsPerSync && next < total; i++) {
+                    int length = windowBytes(next, total);
+                    byte[] value = readLocal(bits, next, length);
+                    String segmentKey = filter.segmentKey(key, next << 3);
+                    if(value != null || existing.contains(segmentKey)){
+                        pipeline.append(segmentKey, filter.segmentOffset(next << 3) >>> 3,
+                                value != null ? value : new byte[length]);
+                    }
+                    next += length;
+                }
+                if(pipeline.size() > 0){
+                    pipeline.sync(filter.executor);
+                }
+                position = next;
+                if(listener != null){
+                    listener.onProgress(position, total);
+                }
+            }
+            return total;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    private void checkCompatible(org.olylakers.cBloomfilter.BloomFilter local){
+        boolean blocked = filter instanceof BlockedBloomFilter;
+        if(local.getM() != filter.getBitSize() || local.getK() != filter.getHashFunctionCount()
+                || blocked != local instanceof org.olylakers.cBloomfilter.BlockedBloomFilter
+                || (!blocked && local.getHashAlgorithm() != filter.getHashAlgorithm())){
+            throw new IllegalArgumentException("the local filter(m=" + local.getM() + ", k=" + local.getK() + ", "
+                    + local.getHashAlgorithm() + ") does not match the redis filter(m=" + filter.getBitSize() + ", k="
+                    + filter.getHashFunctionCount() + ", " + filter.getHashAlgorithm() + ")");
+        }
+    }
+
+    /**
+     * the window from the byte position, it does not cross the end of the segment
+     */
+    private int windowBytes(long position, long total){
+        long segmentBytes = filter.getSegmentBits() >>> 3;
+        long segmentEnd = (position / segmentBytes + 1) * segmentBytes;
+        return (int) Math.min(chunkBytes, Math.min(segmentEnd, total) - position);
+    }
+
+    /**
+     * the redis bytes of the local words, null if all of them are 0
+     */
+    private static byte[] readLocal(org.olylakers.cBloomfilter.BitArray bits, long position, int length){
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        boolean zero = true;
+        for (long word = position >>> 3; buffer.hasRemaining(); word++) {
+            long value = reverseBitsInBytes(bits.getWord(word));
+            zero &= value == 0;
+            buffer.putLong(value);
+        }
+        return zero ? null : buffer.array();
+    }
+
+    /**
+     * overwrite the local words by the redis bytes, the bytes after the end of the redis string are 0
+     */
+    private static void writeLocal(org.olylakers.cBloomfilter.BitArray bits, long position, int length, byte[] bytes){
+        byte[] window = bytes.length == length ? bytes : new byte[length];
+        if(window != bytes){
+            System.arraycopy(bytes, 0, window, 0, Math.min(bytes.length, length));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+        for (long word = position >>> 3; buffer.hasRemaining(); word++) {
+            bits.setWord(word, reverseBitsInBytes(buffer.getLong()));
+        }
+    }
+
+    /**
+     * reverse the bit order in every byte and keep the byte order
+     */
+    static long reverseBitsInBytes(long word){
+        return Long.reverseBytes(Long.reverse(word));
+    }
+
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * @param chunkBytes the bytes of one GETRANGE/SETRANGE, a positive multiple of 8
+     */
+    public void setChunkBytes(int chunkBytes) {
+        if(chunkBytes <= 0 || chunkBytes % 8 != 0){
+            throw new IllegalArgumentException("chunkBytes should be a positive multiple of 8");
+        }
+        this.chunkBytes = chunkBytes;
+    }
+
+    public int getWindowsPerSync() {
+        return windowsPerSync;
+    }
+
+    /**
+     * @param windowsPerSync the GETRANGE/SETRANGE commands sent by one pipeline round
+     */
+    public void setWindowsPerSync(int windowsPerSync) {
+        if(windowsPerSync <= 0){
+            throw new IllegalArgumentException("windowsPerSync should be positive");
+        }
+        this.windowsPerSync = windowsPerSync;
+    }
+}
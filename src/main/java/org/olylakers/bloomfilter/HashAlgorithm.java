@@ -0,0 +1,148 @@
+package org.olylakers.bloomfilter;
+
+/**
+ * The hash algorithms to get the offsets of one bizId, 
+ * a filter must keep using the algorithm it was built with.
+ * The id is stored in the snapshot files instead of the ordinal, so the constants can be reordered,
+ * never reuse the id of a removed algorithm
+ * @author olylakers
+ *
+ */
+public enum HashAlgorithm {
+    
+    /**
+     * MurmurHash of the decimal string, the default of the redis BloomFilter
+     */
+    MURMUR(0, Integer.MAX_VALUE) {
+        @Override
+        public long[] offset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+            return HashUtils.murmurHashOffset(bizId, hashFunctionCount, maxBitCount, offsets);
+        }
+    },
+    
+    /**
+     * the hadoop MurmurHash with rejection sample, the default of the local bloomfilters
+     */
+    HADOOP_MURMUR(1, Integer.MAX_VALUE) {
+        @Override
+        public long[] offset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+            return HashUtils.hadoopMurmurOffset(bizId, hashFunctionCount, maxBitCount, offsets);
+        }
+    },
+    
+    /**
+     * MurmurHash3 of the primitive long with double hashing, the fastest one
+     */
+    MURMUR3(2, Long.MAX_VALUE) {
+        @Override
+        public long[] offset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+            return HashUtils.murmur3Offset(bizId, hashFunctionCount, maxBitCount, offsets);
+        }
+        
+        @Override
+        public boolean visit(long bizId, int hashFunctionCount, long maxBitCount, OffsetVisitor visitor) {
+            return HashUtils.murmur3Offset(bizId, hashFunctionCount, maxBitCount, visitor);
+        }
+        
+        @Override
+        public long[] offsets(long[] bizIds, int from, int count, int hashFunctionCount, long maxBitCount, long[] offsets) {
+            return HashUtils.murmur3Offsets(bizIds, from, count, hashFunctionCount, maxBitCount, offsets);
+        }
+    };
+    
+    private final int id;
+    private final long maxBitCount;
+    
+    private HashAlgorithm(int id, long maxBitCount) {
+        this.id = id;
+        this.maxBitCount = maxBitCount;
+    }
+    
+    /**
+     * the stable id written to the snapshot files
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * the algorithm of the id
+     * @param id
+     * @return null if no algorithm has the id
+     */
+    public static HashAlgorithm forId(int id) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * the largest bit count the algorithm can address
+     * @return
+     */
+    public long getMaxBitCount() {
+        return maxBitCount;
+    }
+    
+    /**
+     * the algorithm for a new filter of bitSize bits, the legacy one if it can address bitSize bits, otherwise MURMUR3
+     * @param legacy
+     * @param bitSize
+     * @return
+     */
+    public static HashAlgorithm forBitSize(HashAlgorithm legacy, long bitSize) {
+        return bitSize <= legacy.maxBitCount ? legacy : MURMUR3;
+    }
+    
+    /**
+     * write the offsets of the bizId into the buffer
+     * @param bizId
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param offsets the first hashFunctionCount elements are overwritten
+     * @return offsets
+     */
+    public abstract long[] offset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets);
+    
+    /**
+     * write the offsets of count bizIds into the buffer, the offsets of bizIds[from + i] are at
+     * offsets[i * hashFunctionCount ...], the same as offset of every bizId
+     * @param bizIds
+     * @param from
+     * @param count
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param offsets at least count * hashFunctionCount elements, not the buffer of offsetBuffer
+     * @return offsets
+     */
+    public long[] offsets(long[] bizIds, int from, int count, int hashFunctionCount, long maxBitCount, long[] offsets) {
+        long[] buffer = HashUtils.offsetBuffer(hashFunctionCount);
+        for (int i = 0; i < count; i++) {
+            offset(bizIds[from + i], hashFunctionCount, maxBitCount, buffer);
+            System.arraycopy(buffer, 0, offsets, i * hashFunctionCount, hashFunctionCount);
+        }
+        return offsets;
+    }
+    
+    /**
+     * visit the offsets of the bizId one by one
+     * @param bizId
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param visitor
+     * @return false if the visitor stops the visit
+     */
+    public boolean visit(long bizId, int hashFunctionCount, long maxBitCount, OffsetVisitor visitor) {
+        long[] offsets = offset(bizId, hashFunctionCount, maxBitCount, HashUtils.offsetBuffer(hashFunctionCount));
+        for (int i = 0; i < hashFunctionCount; i++) {
+            if(!visitor.visit(offsets[i])){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,5 +1,7 @@
 package org.olylakers.bloomfilter;
 
+import java.nio.ByteBuffer;
+
 import org.apache.commons.codec.digest.DigestUtils;
 
 import redis.clients.util.MurmurHash;
@@ -9,12 +11,77 @@ import redis.clients.util.MurmurHash;
  * Offer the offset of redis setbit using diff hash algorithm:
  * 1.MurmurHash
  * 2.SHA1 
+ * 3.Blocked, all the offsets of one bizId are in one 512 bits block
+ * 4.MurmurHash3 on the primitive long, with Kirsch-Mitzenmacher double hashing
+ * 5.the hadoop MurmurHash used by the local bloomfilters
+ * The methods with an offsets parameter write into the caller supplied buffer and allocate nothing,
+ * offsetBuffer offers a thread local one.
+ * The offsets are long, but MurmurHash and the hadoop MurmurHash are 32 bits hashes, 
+ * they only support maxBitCount up to Integer.MAX_VALUE
  * @author olylakers
  *
  * 2013-12-4 上午10:44:54 
  */
 public class HashUtils {
     
+    /**
+     * bits of one block of the blocked layout, 64 bytes, the size of one cache line
+     */
+    public static final int BLOCK_BITS = 512;
+    
+    private static final long BLOCK_SEED = 0x9E3779B97F4A7C15L;
+    
+    /**
+     * one offset in the block need 9 bits of the hash
+     */
+    private static final int BLOCK_OFFSETS_PER_HASH = 64 / 9;
+    
+    /**
+     * the smallest maxBitCount of fastMod
+     */
+    private static final long FAST_MOD_MIN = 1 << 12;
+    
+    private static final long MURMUR3_SEED = 0;
+    private static final long MURMUR3_C1 = 0x87c37b91114253d5L;
+    private static final long MURMUR3_C2 = 0x4cf5ad432745937fL;
+    
+    /**
+     * the seed of the hadoop MurmurHash
+     */
+    private static final int HADOOP_SEED = 89478583;
+    
+    private static final ThreadLocal<long[]> OFFSET_BUFFER = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[64];
+        }
+    };
+    
+    /**
+     * the decimal string of the bizId used by murmurHashOffset, Long.MIN_VALUE has 20 chars
+     */
+    private static final ThreadLocal<ByteBuffer> DECIMAL_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.wrap(new byte[20]);
+        }
+    };
+    
+    /**
+     * a thread local buffer of at least size longs, for the methods with an offsets parameter,
+     * the content is overwritten by the next call in the same thread
+     * @param size
+     * @return
+     */
+    public static long[] offsetBuffer(int size) {
+        long[] buffer = OFFSET_BUFFER.get();
+        if(buffer.length < size){
+            buffer = new long[size];
+            OFFSET_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+    
     /**
      * get the setbit offset by MD5
      * @param bizId
@@ -55,16 +122,320 @@ public class HashUtils {
      * @return
      */
     public static int[] murmurHashOffset(long bizId, int hashFunctionCount, int maxBitCount) {
+        long[] buffer = murmurHashOffset(bizId, hashFunctionCount, maxBitCount, offsetBuffer(hashFunctionCount));
         int[] offsets = new int[hashFunctionCount];
-        byte[] b = String.valueOf(bizId).getBytes();
+        for (int i = 0; i < hashFunctionCount; ++i){
+            offsets[i] = (int) buffer[i];
+        }
+        return offsets;
+    }
+    
+    /**
+     * get the setbit offset by MurmurHash, the same as murmurHashOffset(long, int, int),
+     * the decimal string of the bizId is written into a thread local buffer instead of String.getBytes
+     * @param bizId
+     * @param hashFunctionCount
+     * @param maxBitCount should not be larger than Integer.MAX_VALUE
+     * @param offsets the first hashFunctionCount elements are overwritten
+     * @return offsets
+     */
+    public static long[] murmurHashOffset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+        if(maxBitCount > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("MurmurHash only supports maxBitCount up to Integer.MAX_VALUE");
+        }
+        ByteBuffer b = DECIMAL_BUFFER.get();
+        int start = writeDecimal(bizId, b.array());
+        b.limit(b.capacity()).position(start);
         int hash1 = MurmurHash.hash(b, 0);
+        b.position(start);
         int hash2 = MurmurHash.hash(b, hash1);
         for (int i = 0; i < hashFunctionCount; ++i){
-            offsets[i] = (int) (Math.abs((hash1 + i * hash2) % maxBitCount) );
+            offsets[i] = Math.abs((hash1 + i * hash2) % maxBitCount);
+        }
+        return offsets;
+    }
+    
+    /**
+     * write the decimal string of the value at the end of the buffer
+     * @param value
+     * @param buffer
+     * @return the index of the first char
+     */
+    private static int writeDecimal(long value, byte[] buffer) {
+        int pos = buffer.length;
+        boolean negative = value < 0;
+        //用负数来计算，Long.MIN_VALUE取反会溢出
+        if(!negative){
+            value = -value;
+        }
+        do {
+            buffer[--pos] = (byte) ('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if(negative){
+            buffer[--pos] = '-';
+        }
+        return pos;
+    }
+    
+    /**
+     * get the setbit offset by MurmurHash3 x64 128 of the 8 bytes of the bizId,
+     * the two 64 bits hashes are combined as h1 + i * h2 (Kirsch-Mitzenmacher)
+     * @param bizId
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param offsets the first hashFunctionCount elements are overwritten
+     * @return offsets
+     */
+    public static long[] murmur3Offset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+        //MurmurHash3 x64 128, the 8 bytes of the bizId are the tail k1
+        long k1 = bizId * MURMUR3_C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= MURMUR3_C2;
+        long h1 = MURMUR3_SEED ^ k1 ^ 8;
+        long h2 = MURMUR3_SEED ^ 8;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        
+        long combined = h1;
+        for (int i = 0; i < hashFunctionCount; ++i){
+            offsets[i] = (combined & Long.MAX_VALUE) % maxBitCount;
+            combined += h2;
+        }
+        return offsets;
+    }
+    
+    /**
+     * visit the offsets of murmur3Offset one by one without any buffer
+     * @param bizId
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param visitor
+     * @return false if the visitor stops the visit
+     */
+    public static boolean murmur3Offset(long bizId, int hashFunctionCount, long maxBitCount, OffsetVisitor visitor) {
+        //MurmurHash3 x64 128, the 8 bytes of the bizId are the tail k1
+        long k1 = bizId * MURMUR3_C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= MURMUR3_C2;
+        long h1 = MURMUR3_SEED ^ k1 ^ 8;
+        long h2 = MURMUR3_SEED ^ 8;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        
+        long combined = h1;
+        for (int i = 0; i < hashFunctionCount; ++i){
+            if(!visitor.visit((combined & Long.MAX_VALUE) % maxBitCount)){
+                return false;
+            }
+            combined += h2;
+        }
+        return true;
+    }
+    
+    /**
+     * get the offset by the hadoop MurmurHash used by the local bloomfilters,
+     * the same as cBloomfilter.BloomFilter.hashMurmur(long2bytes(value)), but the 8 bytes are kept in a long
+     * @param value
+     * @param hashFunctionCount
+     * @param maxBitCount should not be larger than Integer.MAX_VALUE
+     * @param offsets the first hashFunctionCount elements are overwritten
+     * @return offsets
+     */
+    public static long[] hadoopMurmurOffset(long value, int hashFunctionCount, long maxBitCount, long[] offsets) {
+        if(maxBitCount > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("hadoop MurmurHash only supports maxBitCount up to Integer.MAX_VALUE");
+        }
+        final int m = 0x5bd1e995;
+        final int r = 24;
+        int hashes = 0;
+        //data的第i个byte是(byte) (data >>> (56 - i * 8))，和long2bytes一致
+        long data = value;
+        long limit = 2147483647 - 2147483647 % maxBitCount;
+        while (hashes < hashFunctionCount) {
+            for (int i = 0; i < 8; i++) {
+                int shift = 56 - i * 8;
+                byte b = (byte) (data >>> shift);
+                if (b == 127) {
+                    data &= ~(0xFFL << shift);
+                    continue;
+                } else {
+                    data = (data & ~(0xFFL << shift)) | (((b + 1) & 0xFFL) << shift);
+                    break;
+                }
+            }
+            
+            int h = HADOOP_SEED ^ 8;
+            int k = Integer.reverseBytes((int) (data >>> 32));
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+            
+            k = Integer.reverseBytes((int) data);
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h *= m;
+            h ^= k;
+            
+            h ^= h >>> 13;
+            h *= m;
+            h ^= h >>> 15;
+            
+            //rejection sample
+            int random = Math.abs(h);
+            if (random <= limit && random != Integer.MIN_VALUE) {
+                offsets[hashes++] = random % maxBitCount;
+            }
+        }
+        return offsets;
+    }
+    
+    /**
+     * get the setbit offset of the blocked layout, one hash picks a block of BLOCK_BITS bits,
+     * and all the hashFunctionCount offsets are in that block
+     * @param bizId
+     * @param hashFunctionCount should not be larger than BLOCK_BITS
+     * @param maxBitCount should be a multiple of BLOCK_BITS
+     * @param offsets the first hashFunctionCount elements are overwritten
+     * @return offsets
+     */
+    public static long[] blockedOffset(long bizId, int hashFunctionCount, long maxBitCount, long[] offsets) {
+        long hash1 = fmix64(bizId ^ BLOCK_SEED);
+        long hash2 = fmix64(hash1);
+        long blockCount = maxBitCount / BLOCK_BITS;
+        long blockStart = ((hash1 >>> 1) % blockCount) * BLOCK_BITS;
+        //block内的double hashing相关性太强，误差率会翻倍，所以每个offset直接取hash的9个bit，
+        //一个long能取7个，用完了再mix一次
+        for (int i = 0; i < hashFunctionCount; ++i){
+            if(i > 0 && i % BLOCK_OFFSETS_PER_HASH == 0){
+                hash2 = fmix64(hash2 + BLOCK_SEED);
+            }
+            offsets[i] = blockStart + (hash2 >>> ((i % BLOCK_OFFSETS_PER_HASH) * 9) & (BLOCK_BITS - 1));
         }
         return offsets;
     }
     
+    /**
+     * murmur3Offset of count bizIds at once, the offsets of bizIds[from + i] are at offsets[i * hashFunctionCount ...],
+     * every step is one loop over the bizIds, so the loops are straight and independent between the bizIds
+     * @param bizIds
+     * @param from
+     * @param count
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param offsets at least count * hashFunctionCount elements, not the buffer of offsetBuffer
+     * @return offsets
+     */
+    public static long[] murmur3Offsets(long[] bizIds, int from, int count, int hashFunctionCount, long maxBitCount,
+            long[] offsets) {
+        long[] h1 = offsetBuffer(count * 2);
+        for (int i = 0; i < count; i++) {
+            long k1 = Long.rotateLeft(bizIds[from + i] * MURMUR3_C1, 31) * MURMUR3_C2;
+            long a = MURMUR3_SEED ^ k1 ^ 8;
+            long b = MURMUR3_SEED ^ 8;
+            a += b;
+            b += a;
+            a = fmix64(a);
+            b = fmix64(b);
+            a += b;
+            h1[i] = a;
+            h1[count + i] = b + a;
+        }
+        if(maxBitCount < FAST_MOD_MIN){
+            for (int i = 0; i < count; i++) {
+                long combined = h1[i];
+                long h2 = h1[count + i];
+                int base = i * hashFunctionCount;
+                for (int j = 0; j < hashFunctionCount; j++) {
+                    offsets[base + j] = (combined & Long.MAX_VALUE) % maxBitCount;
+                    combined += h2;
+                }
+            }
+            return offsets;
+        }
+        double inverse = 1.0 / maxBitCount;
+        for (int i = 0; i < count; i++) {
+            long combined = h1[i];
+            long h2 = h1[count + i];
+            int base = i * hashFunctionCount;
+            for (int j = 0; j < hashFunctionCount; j++) {
+                offsets[base + j] = fastMod(combined & Long.MAX_VALUE, maxBitCount, inverse);
+                combined += h2;
+            }
+        }
+        return offsets;
+    }
+    
+    /**
+     * x % m without the 64 bits division, the same result as %:
+     * the quotient from the double reciprocal is wrong by at most 3 * 2^10 / m < 1 for m >= FAST_MOD_MIN,
+     * so the remainder is in [-m, 2m) and fixed by two branch free corrections
+     * @param x non negative
+     * @param m at least FAST_MOD_MIN
+     * @param inverse 1.0 / m
+     * @return
+     */
+    static long fastMod(long x, long m, double inverse) {
+        long r = x - (long) (x * inverse) * m;
+        r += (r >> 63) & m;
+        r -= m & ~((r - m) >> 63);
+        return r;
+    }
+    
+    /**
+     * blockedOffset of count bizIds at once, the offsets of bizIds[from + i] are at offsets[i * hashFunctionCount ...]
+     * @param bizIds
+     * @param from
+     * @param count
+     * @param hashFunctionCount
+     * @param maxBitCount
+     * @param offsets at least count * hashFunctionCount elements, not the buffer of offsetBuffer
+     * @return offsets
+     */
+    public static long[] blockedOffsets(long[] bizIds, int from, int count, int hashFunctionCount, long maxBitCount,
+            long[] offsets) {
+        long blockCount = maxBitCount / BLOCK_BITS;
+        for (int i = 0; i < count; i++) {
+            long hash1 = fmix64(bizIds[from + i] ^ BLOCK_SEED);
+            long hash2 = fmix64(hash1);
+            long blockStart = ((hash1 >>> 1) % blockCount) * BLOCK_BITS;
+            int base = i * hashFunctionCount;
+            for (int j = 0; j < hashFunctionCount; j++) {
+                if(j > 0 && j % BLOCK_OFFSETS_PER_HASH == 0){
+                    hash2 = fmix64(hash2 + BLOCK_SEED);
+                }
+                offsets[base + j] = blockStart + (hash2 >>> ((j % BLOCK_OFFSETS_PER_HASH) * 9) & (BLOCK_BITS - 1));
+            }
+        }
+        return offsets;
+    }
+    
+    /**
+     * the finalizer of MurmurHash3 x64, a bijection of the 64 bits with full avalanche,
+     * used as the 64 bits hash of a long bizId
+     * @param h
+     * @return
+     */
+    public static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
     public static void main(String[] args){
         int[] offsets = murmurHashOffset(528804111363644L, 6, 1000);
         System.out.println(offsets);
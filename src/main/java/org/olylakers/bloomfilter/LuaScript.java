@@ -0,0 +1,62 @@
+package org.olylakers.bloomfilter;
+
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A lua script executed by EVALSHA, the sha1 is calculated locally,
+ * so the script only need to be sent to redis by SCRIPT LOAD once per redis server,
+ * if the server responds NOSCRIPT(restarted or SCRIPT FLUSH), the script is reloaded automatically
+ * @author olylakers
+ *
+ */
+public class LuaScript {
+    
+    private final String script;
+    private final String sha1;
+    
+    public LuaScript(String script){
+        this.script = script;
+        this.sha1 = DigestUtils.sha1Hex(script);
+    }
+    
+    /**
+     * load the script into the redis server
+     * @param jedis
+     */
+    public void load(Jedis jedis){
+        jedis.scriptLoad(script);
+    }
+    
+    /**
+     * execute the script by EVALSHA, reload it if the redis server does not have it
+     * @param jedis
+     * @param keys
+     * @param args
+     * @return
+     */
+    public Object eval(Jedis jedis, List<String> keys, List<String> args){
+        try {
+            return jedis.evalsha(sha1, keys, args);
+        } catch (JedisDataException e) {
+            if(e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")){
+                throw e;
+            }
+        }
+        
+        load(jedis);
+        return jedis.evalsha(sha1, keys, args);
+    }
+    
+    public String getScript() {
+        return script;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+}
@@ -0,0 +1,326 @@
+package org.olylakers.bloomfilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.olylakers.cBloomfilter.BitArray;
+
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A local snapshot of the bits of one redis BloomFilter key, so include is answered from local memory.
+ * The snapshot is loaded by GETRANGE in chunks and refreshed periodically, the server bits are merged into
+ * the snapshot by OR, so the bits added locally are never lost from the snapshot.
+ * add writes through to redis and sets the bits in the snapshot too.
+ * The bits of a bloomfilter are never cleared, so a bit set in the snapshot is set in redis as well,
+ * a bit added by other clients is seen after the next refresh, until then include may return false for it.
+ * If the redis key is deleted or rebuilt, call invalidate to reload the snapshot from scratch.
+ * @author olylakers
+ *
+ */
+public class NearCacheBloomFilter {
+
+    private static final Logger logger = Logger.getLogger(NearCacheBloomFilter.class);
+
+    private final BloomFilter filter;
+    private final String key;
+
+    /**
+     * the bit o of the filter is at the index (o & ~7) | (7 - (o & 7)) of the snapshot,
+     * so the redis bytes are copied into the little endian words directly,
+     * replaced as a whole by invalidate
+     */
+    private volatile BitArray snapshot;
+
+    /**
+     * the snapshot being loaded by invalidate, add sets the bits in it too, so they are not lost by the swap
+     */
+    private volatile BitArray loading;
+
+    /**
+     * bytes of one GETRANGE
+     */
+    private int chunkBytes = 1024 * 1024;
+
+    /**
+     * if true, a positive answer of the snapshot is confirmed by redis
+     */
+    private boolean confirmPositive;
+
+    private ScheduledExecutorService refresher;
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong serverCalls = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private volatile long lastRefreshTime;
+
+    /**
+     * load the snapshot of the key, no periodic refresh
+     * @param filter
+     * @param key
+     * @param maxBytes the max memory of the snapshot, the filter larger than it can not be cached
+     */
+    public NearCacheBloomFilter(BloomFilter filter, String key, long maxBytes){
+        filter.requireBitLayout();
+        filter.requireShardedPool();
+        long bits = filter.getSegmentCount() * filter.getSegmentBits();
+        long bytes = bits / 8;
+        if(bytes > maxBytes){
+            throw new IllegalArgumentException("the filter needs " + bytes + " bytes, more than maxBytes " + maxBytes);
+        }
+        this.filter = filter;
+        this.key = key;
+        this.snapshot = BitArray.atomic(bits);
+        refresh();
+    }
+
+    /**
+     * load the snapshot of the key and refresh it every refreshInterval
+     * @param filter
+     * @param key
+     * @param maxBytes the max memory of the snapshot, the filter larger than it can not be cached
+     * @param refreshInterval
+     * @param unit
+     */
+    public NearCacheBloomFilter(BloomFilter filter, String key, long maxBytes, long refreshInterval, TimeUnit unit){
+        this(filter, key, maxBytes);
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-bloomfilter-near-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    logger.error("refresh near cache of " + NearCacheBloomFilter.this.key + " failed", e);
+                }
+            }
+        }, refreshInterval, refreshInterval, unit);
+    }
+
+    /**
+     * stop the periodic refresh
+     */
+    public void destroy(){
+        if(refresher != null){
+            refresher.shutdown();
+        }
+    }
+
+    /**
+     * add one object, write through to redis and the snapshot
+     * @param bizId
+     */
+    public void add(long bizId){
+        filter.add(key, bizId);
+        long[] offsets = filter.hashOffset(bizId);
+        //先读loading再读snapshot：loading为null时invalidate还没开始读redis，或者snapshot已经换成新的
+        BitArray next = loading;
+        setBits(snapshot, offsets);
+        if(next != null){
+            setBits(next, offsets);
+        }
+    }
+
+    /**
+     * Check if a bizId is part of the set, redis is called only when the snapshot says maybe present
+     * and confirmPositive is true
+     * @param bizId
+     * @return
+     */
+    public boolean include(long bizId){
+        BitArray current = snapshot;
+        for (long offset : filter.hashOffset(bizId)) {
+            if(!current.get(snapshotIndex(offset))){
+                localHits.incrementAndGet();
+                return false;
+            }
+        }
+        if(!confirmPositive){
+            localHits.incrementAndGet();
+            return true;
+        }
+        serverCalls.incrementAndGet();
+        return filter.include(key, bizId);
+    }
+
+    /**
+     * merge the bits in redis into the snapshot, the segments are read by GETRANGE of chunkBytes
+     */
+    public void refresh(){
+        load(snapshot);
+    }
+
+    /**
+     * load a new snapshot from redis and replace the current one with it, for the redis key deleted or rebuilt,
+     * include is answered by the current snapshot until the new one is loaded,
+     * if the load fails the current snapshot is kept
+     */
+    public synchronized void invalidate(){
+        BitArray next = BitArray.atomic(snapshot.bitSize());
+        loading = next;
+        try {
+            load(next);
+            snapshot = next;
+        }finally{
+            loading = null;
+        }
+    }
+
+    /**
+     * merge the bits in redis into the target
+     * @param target
+     */
+    private void load(BitArray target){
+        try {
+            List<String> segmentKeys = filter.segmentKeys(key);
+            long segmentBytes = filter.getSegmentBits() / 8;
+            for (int segment = 0; segment < segmentKeys.size(); segment++) {
+                byte[] segmentKey = SafeEncoder.encode(segmentKeys.get(segment));
+                for (long start = 0; start < segmentBytes; start += chunkBytes) {
+                    long end = Math.min(start + chunkBytes, segmentBytes) - 1;
+                    byte[] chunk = getrange(segmentKey, start, end);
+                    merge(target, segment * segmentBytes + start, chunk);
+                    //redis string比segment短，后面都是0
+                    if(chunk.length < end - start + 1){
+                        break;
+                    }
+                }
+            }
+            refreshCount.incrementAndGet();
+            lastRefreshTime = System.currentTimeMillis();
+        } catch (RuntimeException e) {
+            refreshFailures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private byte[] getrange(byte[] segmentKey, long start, long end){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            return jedis.getrange(segmentKey, start, end);
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * OR the redis bytes into the snapshot words, byteOffset is a multiple of 8
+     * @param target
+     * @param byteOffset
+     * @param bytes
+     */
+    private static void merge(BitArray target, long byteOffset, byte[] bytes){
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        long wordIndex = byteOffset >>> 3;
+        while (buffer.hasRemaining()) {
+            long word;
+            if(buffer.remaining() >= 8){
+                word = buffer.getLong();
+            }else{
+                word = 0;
+                for (int shift = 0; buffer.hasRemaining(); shift += 8) {
+                    word |= (buffer.get() & 0xFFL) << shift;
+                }
+            }
+            if(word != 0){
+                long old;
+                do {
+                    old = target.getWord(wordIndex);
+                } while ((old | word) != old && !target.compareAndSetWord(wordIndex, old, old | word));
+            }
+            wordIndex++;
+        }
+    }
+
+    private static void setBits(BitArray target, long[] offsets){
+        for (long offset : offsets) {
+            target.testAndSet(snapshotIndex(offset));
+        }
+    }
+
+    /**
+     * the segment i holds the offsets [i * segmentBits, (i + 1) * segmentBits), so the offset is the bit in the snapshot,
+     * only the bit order in the byte is reversed
+     * @param offset
+     * @return
+     */
+    private static long snapshotIndex(long offset){
+        return (offset & ~7L) | (7 - (offset & 7));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * @param chunkBytes a positive multiple of 8
+     */
+    public void setChunkBytes(int chunkBytes) {
+        if(chunkBytes <= 0 || chunkBytes % 8 != 0){
+            throw new IllegalArgumentException("chunkBytes should be a positive multiple of 8");
+        }
+        this.chunkBytes = chunkBytes;
+    }
+
+    public boolean isConfirmPositive() {
+        return confirmPositive;
+    }
+
+    public void setConfirmPositive(boolean confirmPositive) {
+        this.confirmPositive = confirmPositive;
+    }
+
+    /**
+     * include calls answered by the snapshot without redis
+     * @return
+     */
+    public long getLocalHits() {
+        return localHits.get();
+    }
+
+    /**
+     * include calls confirmed by redis
+     * @return
+     */
+    public long getServerCalls() {
+        return serverCalls.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+}
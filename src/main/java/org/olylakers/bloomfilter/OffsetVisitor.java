@@ -0,0 +1,15 @@
+package org.olylakers.bloomfilter;
+
+/**
+ * receive the offsets of one bizId one by one, so no offset array is needed
+ * @author olylakers
+ *
+ */
+public interface OffsetVisitor {
+    
+    /**
+     * @param offset
+     * @return false to stop visiting the rest offsets
+     */
+    boolean visit(long offset);
+}
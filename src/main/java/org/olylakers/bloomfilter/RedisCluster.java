@@ -0,0 +1,423 @@
+package org.olylakers.bloomfilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.pool.impl.GenericObjectPool.Config;
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.RedisInputStream;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The slot map of a redis cluster and one JedisPool per master node.
+ * The slot map is loaded by CLUSTER SLOTS from any known node, refreshed in the background every refreshMillis,
+ * and patched at once by a MOVED reply, which also triggers an extra refresh.
+ * This jedis version knows neither CLUSTER nor ASKING, so these two commands are written as raw RESP
+ * to the socket of the connection when it has no pending reply.
+ * @author olylakers
+ *
+ */
+class RedisCluster {
+
+    private static final Logger logger = Logger.getLogger(RedisCluster.class);
+
+    static final int SLOTS = 16384;
+
+    /**
+     * redirects and reconnects of one command before it fails
+     */
+    static final int MAX_REDIRECTS = 5;
+
+    /**
+     * one redis call routed by the slot of its key
+     */
+    interface Call<T> {
+        T call(Jedis jedis);
+    }
+
+    private final List<JedisShardInfo> seeds;
+    private final int timeout;
+    private final Map<String, JedisPool> nodes = new ConcurrentHashMap<String, JedisPool>();
+    private volatile JedisPool[] slots = new JedisPool[SLOTS];
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param seeds the nodes to load the slot map from at first
+     * @param timeout
+     * @param refreshMillis the interval of the background refresh, 0 to refresh on MOVED only
+     */
+    RedisCluster(List<JedisShardInfo> seeds, int timeout, long refreshMillis){
+        this.seeds = seeds;
+        this.timeout = timeout;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-bloomfilter-cluster-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresh();
+        if(refreshMillis > 0){
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refreshQuietly();
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * the slot of the key, only the hash tag is hashed if the key has a non empty {...}
+     * @param key
+     * @return
+     */
+    static int slot(byte[] key){
+        int start = 0;
+        int end = key.length;
+        for (int i = 0; i < key.length; i++) {
+            if(key[i] == '{'){
+                for (int j = i + 1; j < key.length; j++) {
+                    if(key[j] == '}'){
+                        if(j > i + 1){
+                            start = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return crc16(key, start, end) & (SLOTS - 1);
+    }
+
+    static int slot(String key){
+        return slot(SafeEncoder.encode(key));
+    }
+
+    /**
+     * CRC16-CCITT(XMODEM), the key hash of redis cluster
+     */
+    private static int crc16(byte[] bytes, int from, int to){
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (bytes[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    /**
+     * the master node serving the slot, if the slot is not covered by the slot map, the map is loaded again
+     * @param slot
+     * @return
+     */
+    JedisPool node(int slot){
+        JedisPool pool = slots[slot];
+        if(pool == null){
+            refresh();
+            pool = slots[slot];
+            if(pool == null){
+                throw new JedisException("the slot " + slot + " is not served by any node");
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * the pool of the node host:port, created at the first use
+     * @param hostPort
+     * @return
+     */
+    JedisPool pool(String hostPort){
+        JedisPool pool = nodes.get(hostPort);
+        if(pool == null){
+            synchronized (nodes) {
+                pool = nodes.get(hostPort);
+                if(pool == null){
+                    int colon = hostPort.lastIndexOf(':');
+                    pool = new JedisPool(poolConfig(), hostPort.substring(0, colon),
+                            Integer.parseInt(hostPort.substring(colon + 1)), timeout);
+                    nodes.put(hostPort, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * the distinct master nodes of the slot map
+     * @return
+     */
+    List<JedisPool> masters(){
+        List<JedisPool> masters = new ArrayList<JedisPool>();
+        for (JedisPool pool : slots) {
+            if(pool != null && !masters.contains(pool)){
+                masters.add(pool);
+            }
+        }
+        return masters;
+    }
+
+    /**
+     * the slot is served by the node now, the rest of the slot map is loaded again in the background
+     * @param slot
+     * @param hostPort
+     */
+    void moved(int slot, String hostPort){
+        slots[slot] = pool(hostPort);
+        if(refreshing.compareAndSet(false, true)){
+            try {
+                refresher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            refreshQuietly();
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * call the key on the node serving its slot, following MOVED and ASK redirects,
+     * a broken connection reloads the slot map and retries on the new node
+     * @param key
+     * @param call
+     * @return
+     */
+    <T> T execute(String key, Call<T> call){
+        return execute(slot(key), null, call);
+    }
+
+    /**
+     * @param slot
+     * @param askNode the node the slot is being imported to, ASKING is sent before the call, null to follow the slot map
+     * @param call
+     * @return
+     */
+    <T> T execute(int slot, String askNode, Call<T> call){
+        for (int attempt = 0; ; attempt++) {
+            JedisPool pool = askNode != null ? pool(askNode) : node(slot);
+            Jedis jedis = null;
+            boolean connected = true;
+            try {
+                jedis = pool.getResource();
+                if(askNode != null){
+                    asking(jedis);
+                }
+                return call.call(jedis);
+            } catch (JedisDataException e) {
+                Redirect redirect = Redirect.parse(e);
+                if(redirect == null || attempt >= MAX_REDIRECTS){
+                    throw e;
+                }
+                if(redirect.ask){
+                    askNode = redirect.node;
+                }else{
+                    askNode = null;
+                    moved(redirect.slot, redirect.node);
+                }
+            } catch (JedisConnectionException e) {
+                connected = false;
+                if(attempt >= MAX_REDIRECTS){
+                    throw e;
+                }
+                askNode = null;
+                refreshQuietly();
+            }finally{
+                if(jedis != null){
+                    if(connected){
+                        pool.returnResource(jedis);
+                    }else{
+                        pool.returnBrokenResource(jedis);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * load the slot map by CLUSTER SLOTS from the first known node which answers
+     */
+    synchronized void refresh(){
+        List<String> candidates = new ArrayList<String>(nodes.keySet());
+        for (JedisShardInfo seed : seeds) {
+            String hostPort = seed.getHost() + ":" + seed.getPort();
+            if(!candidates.contains(hostPort)){
+                candidates.add(hostPort);
+            }
+        }
+        JedisException last = null;
+        for (String hostPort : candidates) {
+            JedisPool pool = pool(hostPort);
+            Jedis jedis = null;
+            boolean connected = true;
+            try {
+                jedis = pool.getResource();
+                slots = parseSlots(hostPort.substring(0, hostPort.lastIndexOf(':')),
+                        raw(jedis, SafeEncoder.encode("CLUSTER"), SafeEncoder.encode("SLOTS")));
+                return;
+            } catch (JedisConnectionException e) {
+                connected = false;
+                last = e;
+            } catch (JedisDataException e) {
+                last = e;
+            }finally{
+                if(jedis != null){
+                    if(connected){
+                        pool.returnResource(jedis);
+                    }else{
+                        pool.returnBrokenResource(jedis);
+                    }
+                }
+            }
+        }
+        throw new JedisException("can not load the slot map from " + candidates, last);
+    }
+
+    private void refreshQuietly(){
+        try {
+            refresh();
+        } catch (JedisException e) {
+            logger.warn("refresh the redis cluster slot map failed", e);
+        }
+    }
+
+    /**
+     * CLUSTER SLOTS: [[start, end, [host, port, ...], replicas...], ...], the first node of a range is the master,
+     * an empty host means the node answering the command
+     */
+    @SuppressWarnings("unchecked")
+    private JedisPool[] parseSlots(String queriedHost, Object reply){
+        JedisPool[] map = new JedisPool[SLOTS];
+        for (Object range : (List<Object>) reply) {
+            List<Object> fields = (List<Object>) range;
+            int start = ((Long) fields.get(0)).intValue();
+            int end = ((Long) fields.get(1)).intValue();
+            List<Object> master = (List<Object>) fields.get(2);
+            String host = SafeEncoder.encode((byte[]) master.get(0));
+            if(host.length() == 0 || "?".equals(host)){
+                host = queriedHost;
+            }
+            JedisPool pool = pool(host + ":" + master.get(1));
+            for (int slot = start; slot <= end; slot++) {
+                map[slot] = pool;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * send ASKING, the next command of the connection may use a slot being imported by the node
+     * @param jedis
+     */
+    static void asking(Jedis jedis){
+        raw(jedis, SafeEncoder.encode("ASKING"));
+    }
+
+    /**
+     * write one command as raw RESP and read its reply, the connection must have no pending reply
+     */
+    private static Object raw(Jedis jedis, byte[]... args){
+        try {
+            jedis.getClient().connect();
+            Socket socket = jedis.getClient().getSocket();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            buffer.write(Protocol.ASTERISK_BYTE);
+            buffer.write(SafeEncoder.encode(args.length + "\r\n"));
+            for (byte[] arg : args) {
+                buffer.write(Protocol.DOLLAR_BYTE);
+                buffer.write(SafeEncoder.encode(arg.length + "\r\n"));
+                buffer.write(arg);
+                buffer.write('\r');
+                buffer.write('\n');
+            }
+            OutputStream out = socket.getOutputStream();
+            buffer.writeTo(out);
+            out.flush();
+            return Protocol.read(new RedisInputStream(socket.getInputStream()));
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    private Config poolConfig(){
+        Config config = new Config();
+        config.testOnBorrow = false;
+        config.testOnReturn = false;
+        config.minIdle = 2;
+        config.maxIdle = 50;
+        config.maxActive = 50;
+        config.maxWait = 2 * 1000;
+        config.minEvictableIdleTimeMillis = 1000L * 60L * 60L * 5L;
+        return config;
+    }
+
+    /**
+     * close the pools of all the nodes and the refresh thread
+     */
+    void destroy(){
+        refresher.shutdown();
+        for (JedisPool pool : nodes.values()) {
+            pool.destroy();
+        }
+    }
+
+    /**
+     * a MOVED or ASK error: MOVED 3999 127.0.0.1:6381
+     */
+    static class Redirect {
+        final boolean ask;
+        final int slot;
+        final String node;
+
+        private Redirect(boolean ask, int slot, String node){
+            this.ask = ask;
+            this.slot = slot;
+            this.node = node;
+        }
+
+        /**
+         * @param e
+         * @return null if the error is not a redirect
+         */
+        static Redirect parse(JedisDataException e){
+            String message = e.getMessage();
+            if(message == null || !(message.startsWith("MOVED ") || message.startsWith("ASK "))){
+                return null;
+            }
+            String[] parts = message.split(" ");
+            if(parts.length != 3){
+                return null;
+            }
+            return new Redirect(parts[0].equals("ASK"), Integer.parseInt(parts[1]), parts[2]);
+        }
+    }
+}
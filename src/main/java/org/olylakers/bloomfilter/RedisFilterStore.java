@@ -0,0 +1,89 @@
+package org.olylakers.bloomfilter;
+
+import org.olylakers.cBloomfilter.FilterRegistry;
+
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Keep the cold filters of a FilterRegistry in redis, the filter of a tenant is the key keyPrefix + tenant
+ * of the redis BloomFilter, so it can be read by the redis filter directly as well.
+ * The bits are copied by FilterTransfer, so the registry must use the bit size, hash function count and hash algorithm
+ * of the redis filter, see newRegistry. The local filters of the registry are not blocked, so the blocked redis filter
+ * is not supported.
+ * @author olylakers
+ *
+ */
+public class RedisFilterStore implements FilterRegistry.Store {
+
+    private final BloomFilter filter;
+    private final FilterTransfer transfer;
+    private final String keyPrefix;
+
+    public RedisFilterStore(BloomFilter filter, String keyPrefix){
+        if(filter instanceof BlockedBloomFilter){
+            throw new IllegalArgumentException("BlockedBloomFilter is not supported");
+        }
+        this.filter = filter;
+        this.transfer = new FilterTransfer(filter);
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * a registry of the local filters matching the redis filter
+     * @param maxBytes the max memory of the local filters
+     * @return
+     */
+    public FilterRegistry newRegistry(long maxBytes){
+        return new FilterRegistry(this, maxBytes, filter.getBitSize(), filter.getHashFunctionCount(),
+                filter.getHashAlgorithm());
+    }
+
+    /**
+     * @return false if none of the segment keys exists
+     */
+    public boolean load(String tenant, org.olylakers.cBloomfilter.BloomFilter local){
+        String key = keyPrefix + tenant;
+        if(!exists(key)){
+            return false;
+        }
+        transfer.exportTo(key, local, 0, null);
+        return true;
+    }
+
+    /**
+     * the segment keys are overwritten in place, see FilterTransfer#importFrom
+     */
+    public void save(String tenant, org.olylakers.cBloomfilter.BloomFilter local){
+        transfer.importFrom(local, keyPrefix + tenant, 0, null);
+    }
+
+    private boolean exists(String key){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            for (String segmentKey : filter.segmentKeys(key)) {
+                if(jedis.exists(segmentKey)){
+                    return true;
+                }
+            }
+            return false;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    public FilterTransfer getTransfer() {
+        return transfer;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+}
@@ -0,0 +1,181 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Sliding window of redis BloomFilters, the time is split into generations of the same duration,
+ * every generation is a separate key: key:g{generation}, the generation is currentTimeMillis / duration.
+ * add only goes to the current generation, include checks the last generations newest first.
+ * Every generation key expires by redis TTL after generations * duration from its start,
+ * so the memory is bounded and the old bizIds are dropped without clearing the filter.
+ * @author olylakers
+ *
+ */
+public class RotatingBloomFilter {
+
+    private final BloomFilter filter;
+    private final String key;
+    private final long durationMillis;
+    private final int generations;
+
+    /**
+     * the last generation whose keys got the TTL from this instance
+     */
+    private final AtomicLong expiredGeneration = new AtomicLong(-1);
+
+    /**
+     * @param filter sized for the bizIds of one generation
+     * @param key
+     * @param duration the duration of one generation
+     * @param unit
+     * @param generations how many generations are live, include checks all of them
+     */
+    public RotatingBloomFilter(BloomFilter filter, String key, long duration, TimeUnit unit, int generations){
+        filter.requireBitLayout();
+        filter.requireShardedPool();
+        if(duration <= 0 || generations <= 0){
+            throw new IllegalArgumentException("duration and generations should be positive");
+        }
+        this.filter = filter;
+        this.key = key;
+        this.durationMillis = unit.toMillis(duration);
+        this.generations = generations;
+    }
+
+    /**
+     * add one object to the current generation
+     * @param bizId
+     */
+    public void add(long bizId){
+        long generation = currentGeneration();
+        filter.add(generationKey(generation), bizId);
+        expire(generation);
+    }
+
+    /**
+     * Check if a bizId is in any live generation, the getbit commands of all the generations are sent by one pipeline,
+     * the generations are checked newest first and the first hit returns
+     * @param bizId
+     * @return
+     */
+    public boolean include(long bizId){
+        long[] offset = filter.hashOffset(bizId);
+        long current = currentGeneration();
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, false);
+            for (int i = 0; i < generations; i++) {
+                String generationKey = generationKey(current - i);
+                for (long o : offset) {
+                    pipeline.append(filter.segmentKey(generationKey, o), filter.segmentOffset(o));
+                }
+            }
+
+            boolean[] responses = pipeline.sync(filter.executor);
+            int index = 0;
+            for (int i = 0; i < generations; i++) {
+                boolean contains = true;
+                for (int j = 0; j < offset.length; j++) {
+                    if(!responses[index++]){
+                        contains = false;
+                    }
+                }
+                if(contains){
+                    return true;
+                }
+            }
+            return false;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * the keys of the live generations, newest first
+     * @return
+     */
+    public List<String> liveKeys(){
+        long current = currentGeneration();
+        List<String> keys = new ArrayList<String>(generations);
+        for (int i = 0; i < generations; i++) {
+            keys.add(generationKey(current - i));
+        }
+        return keys;
+    }
+
+    public String currentKey(){
+        return generationKey(currentGeneration());
+    }
+
+    protected long currentGeneration(){
+        return System.currentTimeMillis() / durationMillis;
+    }
+
+    private String generationKey(long generation){
+        return key + ":g" + generation;
+    }
+
+    /**
+     * set the TTL of the segment keys once per generation, the keys expire when the generation is not live anymore,
+     * the segments not touched by the first add do not exist yet, APPEND of an empty value creates them,
+     * so they have the TTL too; if it fails, the claim of the generation is given back so the next add tries again
+     * @param generation
+     */
+    private void expire(long generation){
+        long last = expiredGeneration.get();
+        if(last >= generation || !expiredGeneration.compareAndSet(last, generation)){
+            return;
+        }
+        long expireAt = ((generation + generations) * durationMillis + 999) / 1000;
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        boolean expired = false;
+        try {
+            jedis = filter.getResource();
+            for (String segmentKey : filter.segmentKeys(generationKey(generation))) {
+                jedis.append(segmentKey, "");
+                jedis.expireAt(segmentKey, expireAt);
+            }
+            expired = true;
+        }finally{
+            if(!expired){
+                expiredGeneration.compareAndSet(generation, last);
+            }
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getGenerations() {
+        return generations;
+    }
+}
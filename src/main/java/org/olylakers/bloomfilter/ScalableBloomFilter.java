@@ -0,0 +1,298 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Scalable BloomFilter based on redis, see Almeida, Baquero, Preguiça, Hutchison: Scalable Bloom Filters
+ * and org.olylakers.cBloomfilter.ScalableBloomFilter.
+ * The layers are the keys key:s0, key:s1 ..., the layer i is sized for initialCapacity * GROWTH^i bizIds
+ * with the error rate p0 * TIGHTENING_RATIO^i, p0 = errorRate * (1 - TIGHTENING_RATIO),
+ * so the total error rate stays under errorRate at any size.
+ * add goes to the newest layer, every checkInterval adds the BITCOUNT of the newest layer is compared with
+ * its fill ratio at the designed capacity, and a new layer is added when it is exceeded.
+ * The count of the layers is kept in key:layers, so all the clients add to the same layer,
+ * a client sees the new layers of other clients at its next fill check or refresh.
+ * include checks all the layers by one pipeline.
+ * A layer larger than MAX_SEGMENT_BITS is split into the segment keys key:si:0, key:si:1 ... like BloomFilter#segmentKey.
+ * @author olylakers
+ *
+ */
+public class ScalableBloomFilter {
+
+    public static final int GROWTH = 2;
+
+    public static final double TIGHTENING_RATIO = 0.85;
+
+    /**
+     * KEYS[1]: layers key, ARGV[1]: the layers seen by the client
+     * add one layer if nobody added it yet, return the count of the layers
+     */
+    private static final LuaScript GROW_SCRIPT = new LuaScript(
+            "local layers = tonumber(redis.call('GET', KEYS[1]) or '1')\n" +
+            "if layers == tonumber(ARGV[1]) then\n" +
+            "    layers = layers + 1\n" +
+            "    redis.call('SET', KEYS[1], layers)\n" +
+            "end\n" +
+            "return layers");
+
+    private final BloomFilter filter;
+    private final String key;
+    private final long initialCapacity;
+    private final double errorRate;
+
+    private volatile Layer[] layers;
+    private final Object growLock = new Object();
+    private long added;
+
+    /**
+     * @param filter provides the redis connections only, its size is not used
+     * @param key
+     * @param initialCapacity the capacity of the first layer
+     * @param errorRate the total error rate
+     */
+    public ScalableBloomFilter(BloomFilter filter, String key, long initialCapacity, double errorRate){
+        filter.requireShardedPool();
+        if(initialCapacity <= 0 || errorRate <= 0 || errorRate >= 1){
+            throw new IllegalArgumentException("initialCapacity should be positive and errorRate should be in (0, 1)");
+        }
+        this.filter = filter;
+        this.key = key;
+        this.initialCapacity = initialCapacity;
+        this.errorRate = errorRate;
+        this.layers = new Layer[]{layer(0)};
+        refresh();
+    }
+
+    /**
+     * add one object to the newest layer if it is not in any layer
+     * @param bizId
+     * @return true if the bizId was not in the set before
+     */
+    public boolean add(long bizId){
+        if(include(bizId)){
+            return false;
+        }
+        Layer[] current = layers;
+        Layer newest = current[current.length - 1];
+        long[] offset = newest.offset(bizId);
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, true);
+            for (long i : offset) {
+                pipeline.append(newest.segmentKey(i), newest.segmentOffset(i));
+            }
+            pipeline.sync(filter.executor);
+
+            boolean check;
+            synchronized (growLock) {
+                check = ++added % newest.checkInterval == 0;
+            }
+            if(check && bitCount(jedis, newest) >= newest.maxFillRatio * newest.bitSize){
+                //先创建新的layer，如果它不能创建，layers key不会被改掉
+                layer(current.length);
+                Jedis shard = jedis.getShard(layersKey());
+                long count = (Long) GROW_SCRIPT.eval(shard, Collections.singletonList(layersKey()),
+                        Collections.singletonList(String.valueOf(current.length)));
+                resize((int) count);
+            }
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a bizId is part of any layer, the getbit commands of all the layers are sent by one pipeline
+     * @param bizId
+     * @return
+     */
+    public boolean include(long bizId){
+        Layer[] current = layers;
+        long[][] offsets = new long[current.length][];
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, false);
+            for (int i = current.length - 1; i >= 0; i--) {
+                offsets[i] = current[i].offset(bizId);
+                for (long o : offsets[i]) {
+                    pipeline.append(current[i].segmentKey(o), current[i].segmentOffset(o));
+                }
+            }
+
+            boolean[] responses = pipeline.sync(filter.executor);
+            int index = 0;
+            for (int i = current.length - 1; i >= 0; i--) {
+                boolean contains = true;
+                for (int j = 0; j < offsets[i].length; j++) {
+                    if(!responses[index++]){
+                        contains = false;
+                    }
+                }
+                if(contains){
+                    return true;
+                }
+            }
+            return false;
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * read the count of the layers from redis
+     */
+    public void refresh(){
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            String count = jedis.get(layersKey());
+            resize(count == null ? 1 : Integer.parseInt(count));
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * all the redis keys of the filter
+     * @return
+     */
+    public List<String> keys(){
+        List<String> keys = new ArrayList<String>();
+        keys.add(layersKey());
+        for (Layer layer : layers) {
+            keys.addAll(layer.segmentKeys());
+        }
+        return keys;
+    }
+
+    public int getLayerCount(){
+        return layers.length;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    private synchronized void resize(int count){
+        Layer[] current = layers;
+        if(count <= current.length){
+            return;
+        }
+        Layer[] resized = new Layer[count];
+        System.arraycopy(current, 0, resized, 0, current.length);
+        for (int i = current.length; i < count; i++) {
+            resized[i] = layer(i);
+        }
+        layers = resized;
+    }
+
+    private static long bitCount(ShardedJedis jedis, Layer layer){
+        long count = 0;
+        for (String segmentKey : layer.segmentKeys()) {
+            count += jedis.bitcount(segmentKey);
+        }
+        return count;
+    }
+
+    private String layersKey(){
+        return key + ":layers";
+    }
+
+    private Layer layer(int index){
+        long capacity = initialCapacity;
+        double layerErrorRate = errorRate * (1 - TIGHTENING_RATIO);
+        for (int i = 0; i < index; i++) {
+            if(capacity > Long.MAX_VALUE / GROWTH){
+                throw new IllegalStateException("the layer " + index + " of " + key + " is too large");
+            }
+            capacity *= GROWTH;
+            layerErrorRate *= TIGHTENING_RATIO;
+        }
+        return new Layer(key + ":s" + index, capacity, layerErrorRate);
+    }
+
+    private static class Layer {
+        final String key;
+        final long bitSize;
+        final int segmentCount;
+        final long segmentBits;
+        final int k;
+        final double maxFillRatio;
+        final long checkInterval;
+
+        Layer(String key, long capacity, double errorRate){
+            this.key = key;
+            this.bitSize = org.olylakers.cBloomfilter.BloomFilter.optimalM(capacity, errorRate);
+            long segments = bitSize / BloomFilter.MAX_SEGMENT_BITS + (bitSize % BloomFilter.MAX_SEGMENT_BITS == 0 ? 0 : 1);
+            if(segments > Integer.MAX_VALUE){
+                throw new IllegalStateException("the layer " + key + " needs " + bitSize + " bits, too many segments");
+            }
+            this.segmentCount = (int) segments;
+            this.segmentBits = (bitSize + segmentCount - 1) / segmentCount;
+            this.k = Math.max(1, org.olylakers.cBloomfilter.BloomFilter.optimalK(capacity, bitSize));
+            this.maxFillRatio = 1 - Math.exp(-k * (double) capacity / bitSize);
+            this.checkInterval = Math.max(1, capacity / 64);
+        }
+
+        long[] offset(long bizId){
+            return HashAlgorithm.MURMUR3.offset(bizId, k, bitSize, new long[k]);
+        }
+
+        String segmentKey(long offset){
+            if(segmentCount == 1){
+                return key;
+            }
+            return key + ":" + (offset / segmentBits);
+        }
+
+        long segmentOffset(long offset){
+            return offset % segmentBits;
+        }
+
+        List<String> segmentKeys(){
+            List<String> keys = new ArrayList<String>(segmentCount);
+            if(segmentCount == 1){
+                keys.add(key);
+                return keys;
+            }
+            for (int i = 0; i < segmentCount; i++) {
+                keys.add(key + ":" + i);
+            }
+            return keys;
+        }
+    }
+}
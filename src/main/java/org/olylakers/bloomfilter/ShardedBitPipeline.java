@@ -0,0 +1,348 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * setbit/getbit/getrange/setrange/evalsha commands of one batch, grouped by the redis shard of their keys,
+ * every shard gets its own pipeline and the pipelines of diff shards are synced in parallel
+ * @author olylakers
+ *
+ */
+class ShardedBitPipeline {
+
+    enum Op {
+        SETBIT, GETBIT, GETRANGE, SETRANGE, EVALSHA
+    }
+
+    private final ShardedJedis jedis;
+    private final Op op;
+    private final LuaScript script;
+    private final Map<Jedis, ShardCommands> shards = new LinkedHashMap<Jedis, ShardCommands>();
+    private int size;
+    private Object[] responses;
+
+    /**
+     * @param jedis
+     * @param set true to send setbit commands, false to send getbit commands
+     */
+    ShardedBitPipeline(ShardedJedis jedis, boolean set){
+        this(jedis, set ? Op.SETBIT : Op.GETBIT);
+    }
+
+    ShardedBitPipeline(ShardedJedis jedis, Op op){
+        this.jedis = jedis;
+        this.op = op;
+        this.script = null;
+    }
+
+    /**
+     * send evalsha commands of the script, every command has one key, the script is loaded if the shard does not have it
+     * @param jedis
+     * @param script
+     */
+    ShardedBitPipeline(ShardedJedis jedis, LuaScript script){
+        this.jedis = jedis;
+        this.op = Op.EVALSHA;
+        this.script = script;
+    }
+
+    /**
+     * append one setbit/getbit command, the result of it is at the same index of the array returned by sync
+     * @param key
+     * @param offset
+     */
+    void append(String key, long offset){
+        append(key, offset, 0);
+    }
+
+    /**
+     * append one setbit or getbit command whatever the op of the pipeline is,
+     * so the setbit and getbit commands are sent in the order of append
+     * @param key
+     * @param offset
+     * @param set
+     */
+    void appendBit(String key, long offset, boolean set){
+        shardCommands(key).append(set ? Op.SETBIT : Op.GETBIT, SafeEncoder.encode(key), offset, 0, null, size++);
+    }
+
+    /**
+     * append one command, for getrange, start and end are the byte offsets
+     * @param key
+     * @param start
+     * @param end
+     */
+    void append(String key, long start, long end){
+        ShardCommands commands = shardCommands(key);
+        commands.append(op, SafeEncoder.encode(key), start, end, null, size++);
+    }
+
+    /**
+     * append one evalsha command, the integer reply of it is returned by value(index) after sync
+     * @param key KEYS[1] of the script
+     * @param args ARGV of the script
+     */
+    void append(String key, List<String> args){
+        ShardCommands commands = shardCommands(key);
+        byte[][] params = new byte[args.size() + 1][];
+        params[0] = SafeEncoder.encode(key);
+        for (int i = 0; i < args.size(); i++) {
+            params[i + 1] = SafeEncoder.encode(args.get(i));
+        }
+        commands.append(op, params[0], 0, 0, null, size++);
+        commands.params.add(params);
+    }
+
+    /**
+     * append one setrange command
+     * @param key
+     * @param offset the byte offset
+     * @param value
+     */
+    void append(String key, long offset, byte[] value){
+        ShardCommands commands = shardCommands(key);
+        commands.append(op, SafeEncoder.encode(key), offset, 0, value, size++);
+    }
+
+    private ShardCommands shardCommands(String key){
+        Jedis shard = jedis.getShard(key);
+        ShardCommands commands = shards.get(shard);
+        if(commands == null){
+            commands = new ShardCommands(shard);
+            shards.put(shard, commands);
+        }
+        return commands;
+    }
+
+    int size(){
+        return size;
+    }
+
+    /**
+     * send all the commands and wait for the responses
+     * @param executor used to sync the pipelines of diff shards in parallel,
+     *        if null or only one shard, the pipelines are synced in the current thread
+     * @return the bit value of every command, for setbit it is the original value,
+     *         for getrange it is true if the range is not empty, for setrange it should be ignored
+     */
+    boolean[] sync(ExecutorService executor){
+        responses = new Object[size];
+        if(executor == null || shards.size() <= 1){
+            for (ShardCommands commands : shards.values()) {
+                commands.sync();
+            }
+        }else{
+            syncInParallel(executor);
+        }
+
+        boolean[] result = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Object response = responses[i];
+            if(response instanceof byte[]){
+                result[i] = ((byte[]) response).length > 0;
+            }else{
+                result[i] = Long.valueOf(1).equals(response);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * the integer returned by the evalsha command at the index, available after sync
+     * @param index
+     * @return
+     */
+    long value(int index){
+        Object response = responses[index];
+        return response instanceof Long ? (Long) response : 0;
+    }
+
+    /**
+     * the bytes returned by the getrange command at the index, available after sync
+     * @param index
+     * @return
+     */
+    byte[] range(int index){
+        Object response = responses[index];
+        return response instanceof byte[] ? (byte[]) response : new byte[0];
+    }
+
+    /**
+     * the first shard is synced in the current thread and the others by the executor, every shard is waited for
+     * before the first failure is thrown, since all of them write to and read from the connections of the same
+     * ShardedJedis
+     * @param executor
+     */
+    private void syncInParallel(ExecutorService executor){
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(shards.size() - 1);
+        ShardCommands first = null;
+        for (final ShardCommands commands : shards.values()) {
+            if(first == null){
+                first = commands;
+                continue;
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    commands.sync();
+                    return null;
+                }
+            }));
+        }
+
+        RuntimeException failure = null;
+        try {
+            first.sync();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    //keep waiting, the shard task is still using the connection
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if(failure == null){
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new JedisException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    private class ShardCommands {
+        private final Jedis shard;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        private final List<byte[]> values = new ArrayList<byte[]>();
+        private final List<byte[][]> params = new ArrayList<byte[][]>();
+        private Op[] ops = new Op[16];
+        private long[] starts = new long[16];
+        private long[] ends = new long[16];
+        private int[] indexes = new int[16];
+        private int count;
+
+        ShardCommands(Jedis shard){
+            this.shard = shard;
+        }
+
+        void append(Op op, byte[] key, long start, long end, byte[] value, int index){
+            if(count == indexes.length){
+                Op[] newOps = new Op[count << 1];
+                long[] newStarts = new long[count << 1];
+                long[] newEnds = new long[count << 1];
+                int[] newIndexes = new int[count << 1];
+                System.arraycopy(ops, 0, newOps, 0, count);
+                System.arraycopy(starts, 0, newStarts, 0, count);
+                System.arraycopy(ends, 0, newEnds, 0, count);
+                System.arraycopy(indexes, 0, newIndexes, 0, count);
+                ops = newOps;
+                starts = newStarts;
+                ends = newEnds;
+                indexes = newIndexes;
+            }
+            keys.add(key);
+            values.add(value);
+            ops[count] = op;
+            starts[count] = start;
+            ends[count] = end;
+            indexes[count] = index;
+            count++;
+        }
+
+        /**
+         * the commands are written to the client directly and the raw replies are read back,
+         * so the binary getrange reply is not decoded
+         */
+        void sync(){
+            Client client = shard.getClient();
+            for (int i = 0; i < count; i++) {
+                switch (ops[i]) {
+                case EVALSHA:
+                    client.evalsha(SafeEncoder.encode(script.getSha1()), 1, params.get(i));
+                    break;
+                case SETBIT:
+                    client.setbit(keys.get(i), starts[i], true);
+                    break;
+                case GETBIT:
+                    client.getbit(keys.get(i), starts[i]);
+                    break;
+                case SETRANGE:
+                    client.setrange(keys.get(i), starts[i], values.get(i));
+                    break;
+                default:
+                    client.getrange(keys.get(i), starts[i], ends[i]);
+                    break;
+                }
+            }
+
+            List<Object> replies = client.getAll();
+            List<Integer> noScript = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                Object reply = replies.get(i);
+                if(ops[i] == Op.EVALSHA && isNoScript(reply)){
+                    noScript.add(i);
+                    continue;
+                }
+                if(reply instanceof JedisDataException){
+                    throw (JedisDataException) reply;
+                }
+                responses[indexes[i]] = reply;
+            }
+            if(!noScript.isEmpty()){
+                resend(noScript);
+            }
+        }
+
+        /**
+         * the commands answered by NOSCRIPT were not executed, send them again after loading the script
+         */
+        private void resend(List<Integer> noScript){
+            script.load(shard);
+            Client client = shard.getClient();
+            for (int i : noScript) {
+                client.evalsha(SafeEncoder.encode(script.getSha1()), 1, params.get(i));
+            }
+            List<Object> replies = client.getAll();
+            for (int i = 0; i < noScript.size(); i++) {
+                Object reply = replies.get(i);
+                if(reply instanceof JedisDataException){
+                    throw (JedisDataException) reply;
+                }
+                responses[indexes[noScript.get(i)]] = reply;
+            }
+        }
+
+        private boolean isNoScript(Object reply){
+            if(!(reply instanceof JedisDataException)){
+                return false;
+            }
+            String message = ((JedisDataException) reply).getMessage();
+            return message != null && message.startsWith("NOSCRIPT");
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package org.olylakers.bloomfilter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.ShardedJedis;
+
+/**
+ * Write-behind wrapper of a redis BloomFilter, add only puts the bizId into a bounded queue,
+ * a background flusher drains the queue every flushInterval or when flushSize bizIds are queued,
+ * the offsets of all the drained bizIds are deduplicated and set by one pipeline per shard.
+ * The bizIds not flushed yet are kept in a pending set, so include sees them before they reach redis.
+ * When the queue is full, the add is handled by the Backpressure policy.
+ * close flushes all the queued bizIds, an add either is queued before close starts or fails.
+ * @author olylakers
+ *
+ */
+public class WriteBehindBloomFilter {
+
+    private static final Logger logger = Logger.getLogger(WriteBehindBloomFilter.class);
+
+    /**
+     * what add does when the queue is full
+     */
+    public enum Backpressure {
+        /**
+         * add the bizId to redis in the caller thread
+         */
+        CALLER_RUNS,
+        /**
+         * wait until the flusher makes room in the queue
+         */
+        BLOCK,
+        /**
+         * throw RejectedExecutionException
+         */
+        REJECT
+    }
+
+    private final BloomFilter filter;
+    private final int capacity;
+    private final int flushSize;
+    private final long flushIntervalMillis;
+    private final Backpressure backpressure;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final Set<Entry> pending = ConcurrentHashMap.newKeySet();
+
+    private final Object signal = new Object();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * add holds the read lock from the running check until the bizId is queued,
+     * close takes the write lock to stop accepting, so no add is queued after the final flush
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+
+    /**
+     * @param filter
+     * @param capacity the max bizIds in the queue
+     * @param flushSize flush when flushSize bizIds are queued
+     * @param flushInterval flush at least once every flushInterval
+     * @param unit
+     * @param backpressure
+     */
+    public WriteBehindBloomFilter(BloomFilter filter, int capacity, int flushSize, long flushInterval, TimeUnit unit,
+            Backpressure backpressure){
+        filter.requireBitLayout();
+        filter.requireShardedPool();
+        if(capacity <= 0 || flushSize <= 0 || flushInterval <= 0){
+            throw new IllegalArgumentException("capacity, flushSize and flushInterval should be positive");
+        }
+        this.filter = filter;
+        this.capacity = capacity;
+        this.flushSize = Math.min(flushSize, capacity);
+        this.flushIntervalMillis = Math.max(1, unit.toMillis(flushInterval));
+        this.backpressure = backpressure;
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "redis-bloomfilter-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * queue one object using the specified key
+     * @param key
+     * @param bizId
+     */
+    public void add(String key, long bizId){
+        closeLock.readLock().lock();
+        try {
+            if(!running){
+                throw new IllegalStateException("WriteBehindBloomFilter is closed");
+            }
+            enqueue(key, bizId);
+        }finally{
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void enqueue(String key, long bizId){
+        Entry entry = new Entry(key, bizId);
+        while (!reserve()) {
+            switch (backpressure) {
+            case CALLER_RUNS:
+                filter.add(key, bizId);
+                return;
+            case REJECT:
+                rejectedCount.incrementAndGet();
+                throw new RejectedExecutionException("write behind queue is full, capacity " + capacity);
+            default:
+                synchronized (signal) {
+                    signal.notifyAll();
+                    try {
+                        signal.wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("interrupted while waiting for the write behind queue", e);
+                    }
+                }
+            }
+        }
+        pending.add(entry);
+        queue.add(entry);
+        if(queueSize.get() >= flushSize){
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Check if a bizId is part of the set, the queued bizIds are checked locally first
+     * @param key
+     * @param bizId
+     * @return
+     */
+    public boolean include(String key, long bizId){
+        if(pending.contains(new Entry(key, bizId))){
+            return true;
+        }
+        return filter.include(key, bizId);
+    }
+
+    /**
+     * flush all the queued bizIds in the caller thread
+     */
+    public void flush(){
+        while (flushOnce() > 0) {
+        }
+    }
+
+    /**
+     * stop the flusher and flush all the queued bizIds
+     */
+    public void close(){
+        closeLock.writeLock().lock();
+        try {
+            running = false;
+        }finally{
+            closeLock.writeLock().unlock();
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private boolean reserve(){
+        for (;;) {
+            int size = queueSize.get();
+            if(size >= capacity){
+                return false;
+            }
+            if(queueSize.compareAndSet(size, size + 1)){
+                return true;
+            }
+        }
+    }
+
+    private void flushLoop(){
+        while (running) {
+            synchronized (signal) {
+                if(running && queueSize.get() < flushSize){
+                    try {
+                        signal.wait(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                flushOnce();
+            } catch (RuntimeException e) {
+                logger.error("flush write behind queue failed", e);
+                //redis不可用时不要马上重试
+                try {
+                    Thread.sleep(flushIntervalMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * drain up to flushSize bizIds and set their bits, the failed bizIds are queued again
+     * @return the count of the drained bizIds
+     */
+    private synchronized int flushOnce(){
+        List<Entry> batch = new ArrayList<Entry>(flushSize);
+        Entry entry;
+        while (batch.size() < flushSize && (entry = queue.poll()) != null) {
+            batch.add(entry);
+        }
+        if(batch.isEmpty()){
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        try {
+            setBits(batch);
+        } catch (RuntimeException e) {
+            flushFailures.incrementAndGet();
+            queue.addAll(batch);
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            lastFlushNanos = nanos;
+            totalFlushNanos.addAndGet(nanos);
+        }
+
+        queueSize.addAndGet(-batch.size());
+        for (Entry flushed : batch) {
+            pending.remove(flushed);
+        }
+        flushCount.incrementAndGet();
+        flushedCount.addAndGet(batch.size());
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        return batch.size();
+    }
+
+    /**
+     * the same bit of the same segment is set only once, the pipeline is synced every pipelineDepth commands
+     * @param batch
+     */
+    private void setBits(List<Entry> batch){
+        Set<Bit> bits = new HashSet<Bit>();
+        for (Entry entry : batch) {
+            for (long offset : filter.hashOffset(entry.bizId)) {
+                bits.add(new Bit(filter.segmentKey(entry.key, offset), filter.segmentOffset(offset)));
+            }
+        }
+
+        ShardedJedis jedis = null;
+        boolean connected = true;
+        try {
+            jedis = filter.getResource();
+            ShardedBitPipeline pipeline = new ShardedBitPipeline(jedis, true);
+            for (Bit bit : bits) {
+                pipeline.append(bit.key, bit.offset);
+                if(pipeline.size() >= filter.getPipelineDepth()){
+                    pipeline.sync(filter.executor);
+                    pipeline = new ShardedBitPipeline(jedis, true);
+                }
+            }
+            pipeline.sync(filter.executor);
+        } catch (RuntimeException e) {
+            connected = false;
+            throw e;
+        }finally{
+            if(jedis != null){
+                if(connected){
+                    filter.pool.returnResource(jedis);
+                }else{
+                    filter.pool.returnBrokenResource(jedis);
+                }
+            }
+        }
+    }
+
+    /**
+     * bizIds in the queue, not flushed yet
+     * @return
+     */
+    public int getQueueDepth() {
+        return queueSize.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * bizIds flushed to redis
+     * @return
+     */
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+
+    /**
+     * adds rejected by the REJECT policy
+     * @return
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getLastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public long getTotalFlushNanos() {
+        return totalFlushNanos.get();
+    }
+
+    private static class Entry {
+        final String key;
+        final long bizId;
+
+        Entry(String key, long bizId){
+            this.key = key;
+            this.bizId = bizId;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + (int) (bizId ^ (bizId >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Entry)){
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return bizId == other.bizId && key.equals(other.key);
+        }
+    }
+
+    private static class Bit {
+        final String key;
+        final long offset;
+
+        Bit(String key, long offset){
+            this.key = key;
+            this.offset = offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + (int) (offset ^ (offset >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Bit)){
+                return false;
+            }
+            Bit other = (Bit) obj;
+            return offset == other.offset && key.equals(other.key);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的BitArray，每个long用AtomicLongArray保存，置位用CAS做OR，
+ * 多个线程并发add/contains不需要加锁，也不会丢失别的线程设置的bit
+ * 和HeapBitArray一样按每页2^20个long分页
+ *
+ * @author olylakers
+ *
+ */
+public class AtomicBitArray extends BitArray implements Serializable {
+	private static final long serialVersionUID = -2218304377720853213L;
+
+	private static final int PAGE_SHIFT = 20;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final long bitSize;
+	private final long wordCount;
+	private final AtomicLongArray[] pages;
+
+	public AtomicBitArray(long bitSize) {
+		this.bitSize = bitSize;
+		this.wordCount = words(bitSize);
+		long pageCount = ((wordCount - 1) >>> PAGE_SHIFT) + 1;
+		if (pageCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize is too large: " + bitSize);
+		}
+		pages = new AtomicLongArray[(int) pageCount];
+		for (int i = 0; i < pages.length; i++) {
+			long remain = wordCount - ((long) i << PAGE_SHIFT);
+			pages[i] = new AtomicLongArray((int) Math.min(PAGE_SIZE, remain));
+		}
+	}
+
+	@Override
+	public boolean get(long index) {
+		long word = index >>> 6;
+		return (pages[(int) (word >>> PAGE_SHIFT)].get((int) (word & PAGE_MASK)) & (1L << index)) != 0;
+	}
+
+	@Override
+	public void set(long index) {
+		testAndSet(index);
+	}
+
+	/**
+	 * 先读一次，bit已经是1时不做CAS，已经置位的bit不会在多个线程之间争用
+	 */
+	@Override
+	public boolean testAndSet(long index) {
+		long word = index >>> 6;
+		AtomicLongArray page = pages[(int) (word >>> PAGE_SHIFT)];
+		int i = (int) (word & PAGE_MASK);
+		long mask = 1L << index;
+		for (;;) {
+			long old = page.get(i);
+			if ((old & mask) != 0) {
+				return false;
+			}
+			if (page.compareAndSet(i, old, old | mask)) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public void set(long index, boolean value) {
+		if (value) {
+			testAndSet(index);
+			return;
+		}
+		long word = index >>> 6;
+		AtomicLongArray page = pages[(int) (word >>> PAGE_SHIFT)];
+		int i = (int) (word & PAGE_MASK);
+		long mask = 1L << index;
+		for (;;) {
+			long old = page.get(i);
+			if ((old & mask) == 0 || page.compareAndSet(i, old, old & ~mask)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public long getWord(long wordIndex) {
+		return pages[(int) (wordIndex >>> PAGE_SHIFT)].get((int) (wordIndex & PAGE_MASK));
+	}
+
+	@Override
+	public void setWord(long wordIndex, long word) {
+		pages[(int) (wordIndex >>> PAGE_SHIFT)].set((int) (wordIndex & PAGE_MASK), word);
+	}
+
+	@Override
+	public boolean compareAndSetWord(long wordIndex, long expect, long update) {
+		return pages[(int) (wordIndex >>> PAGE_SHIFT)].compareAndSet((int) (wordIndex & PAGE_MASK), expect, update);
+	}
+
+	@Override
+	public long bitSize() {
+		return bitSize;
+	}
+
+	@Override
+	public long wordCount() {
+		return wordCount;
+	}
+}
@@ -0,0 +1,445 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.LongStream;
+
+import org.olylakers.bloomfilter.HashUtils;
+
+/**
+ * 不可变的binary fuse filter，参考Graf, Lemire: Binary Fuse Filters: Fast and Smaller Than Xor Filters
+ * 适合离线构建、之后不再修改的集合，比如启动时加载的黑名单
+ * 每个元素的64位hash映射到3个相邻segment里的3个位置h0、h1、h2，构建时保证
+ * F[h0] ^ F[h1] ^ F[h2] == fingerprint(hash)，查询只需要读3个fingerprint，
+ * 8位fingerprint时每个元素约9bit，误差率约1/256；16位时每个元素约18bit，误差率约1/65536
+ * 同样误差率的BloomFilter每个元素要1.44 * log2(1/ε)bit，多44%，而且要读k个位置
+ * 构建时先在ForkJoinPool上并行计算hash并排序，相同的元素排序后相邻，直接去重，
+ * 排序后按segment有序，peel时的访问也更集中；peel本身是串行的
+ * 3个位置都在同一个元素的segment窗口内，数组长度不超过Integer.MAX_VALUE
+ * fingerprint可以用writeTo写到文件，用map映射回来直接查询，不需要加载到堆里
+ * 线程安全
+ *
+ * @author olylakers
+ *
+ */
+public class BinaryFuseFilter {
+
+	/**
+	 * 文件头："BFUF"
+	 */
+	public static final int MAGIC = 0x42465546;
+
+	/**
+	 * 文件头的字节数：magic, fingerprintBits, seed, segmentLength, segmentCount, arrayLength
+	 */
+	public static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+
+	private static final int ARITY = 3;
+
+	/**
+	 * 换seed重试的次数，正常情况下一两次就能构建成功
+	 */
+	private static final int MAX_ITERATIONS = 100;
+
+	/**
+	 * 并行计算hash时每个任务的元素个数
+	 */
+	private static final int HASH_TASK_SIZE = 1 << 16;
+
+	private final int fingerprintBits;
+	private final long seed;
+	private final int segmentLength;
+	private final int segmentLengthMask;
+	private final int segmentCount;
+	private final int segmentCountLength;
+	private final int arrayLength;
+	private final ByteBuffer fingerprints;
+
+	/**
+	 * 用ForkJoinPool.commonPool()构建
+	 * @param keys
+	 * @param fingerprintBits 8或者16
+	 * @return
+	 */
+	public static BinaryFuseFilter build(long[] keys, int fingerprintBits) {
+		return build(keys, fingerprintBits, ForkJoinPool.commonPool());
+	}
+
+	public static BinaryFuseFilter build(LongStream keys, int fingerprintBits) {
+		return build(keys.toArray(), fingerprintBits, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param keys 可以有重复，不会被修改
+	 * @param fingerprintBits 8或者16
+	 * @param pool 用来并行计算hash和排序
+	 * @return
+	 */
+	public static BinaryFuseFilter build(long[] keys, int fingerprintBits, ForkJoinPool pool) {
+		if (fingerprintBits != 8 && fingerprintBits != 16) {
+			throw new IllegalArgumentException("fingerprintBits should be 8 or 16");
+		}
+		int size = keys.length;
+		int segmentLength = size == 0 ? 4 : segmentLength(size);
+		double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+		long capacity = Math.round(size * sizeFactor);
+		long initSegmentCount = (capacity + segmentLength - 1) / segmentLength - (ARITY - 1);
+		long arrayLength = (initSegmentCount + ARITY - 1) * segmentLength;
+		long segmentCount = (arrayLength + segmentLength - 1) / segmentLength;
+		segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+		arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+		if (arrayLength * (fingerprintBits / 8) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many keys: " + size);
+		}
+
+		ByteBuffer fingerprints = ByteBuffer.allocate((int) arrayLength * (fingerprintBits / 8));
+		long rng = 0x726b2b9d438b9d4dL;
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			rng += 0x9E3779B97F4A7C15L;
+			long seed = HashUtils.fmix64(rng);
+			BinaryFuseFilter filter = new BinaryFuseFilter(fingerprintBits, seed, segmentLength, (int) segmentCount,
+					(int) arrayLength, fingerprints);
+			long[] hashes = new long[size];
+			pool.invoke(new HashTask(keys, hashes, seed, 0, size));
+			int unique = dedupe(hashes);
+			if (filter.populate(hashes, unique)) {
+				return filter;
+			}
+		}
+		throw new IllegalStateException("failed to build the filter after " + MAX_ITERATIONS + " seeds");
+	}
+
+	/**
+	 * 映射writeTo写出的文件，只读
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryFuseFilter map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return read(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			//map之后关闭文件，映射依然有效
+			raf.close();
+		}
+	}
+
+	/**
+	 * 从buffer的当前位置读取writeTo写出的数据，fingerprint直接引用buffer，不复制
+	 * @param buffer
+	 * @return
+	 */
+	public static BinaryFuseFilter read(ByteBuffer buffer) {
+		ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+			throw new IllegalArgumentException("not a binary fuse filter");
+		}
+		int fingerprintBits = header.getInt();
+		long seed = header.getLong();
+		int segmentLength = header.getInt();
+		int segmentCount = header.getInt();
+		int arrayLength = header.getInt();
+		int bytes = arrayLength * (fingerprintBits / 8);
+		if ((fingerprintBits != 8 && fingerprintBits != 16) || header.remaining() < bytes) {
+			throw new IllegalArgumentException("corrupted binary fuse filter");
+		}
+		header.limit(header.position() + bytes);
+		return new BinaryFuseFilter(fingerprintBits, seed, segmentLength, segmentCount, arrayLength, header.slice());
+	}
+
+	private static int segmentLength(int size) {
+		int length = 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25);
+		return Math.min(length, 1 << 18);
+	}
+
+	/**
+	 * 排序后去掉重复的hash，fmix64是双射，hash相同说明元素相同
+	 * @return 去重后的个数
+	 */
+	private static int dedupe(long[] hashes) {
+		int unique = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (i == 0 || hashes[i] != hashes[i - 1]) {
+				hashes[unique++] = hashes[i];
+			}
+		}
+		return unique;
+	}
+
+	private BinaryFuseFilter(int fingerprintBits, long seed, int segmentLength, int segmentCount, int arrayLength,
+			ByteBuffer fingerprints) {
+		this.fingerprintBits = fingerprintBits;
+		this.seed = seed;
+		this.segmentLength = segmentLength;
+		this.segmentLengthMask = segmentLength - 1;
+		this.segmentCount = segmentCount;
+		this.segmentCountLength = segmentCount * segmentLength;
+		this.arrayLength = arrayLength;
+		this.fingerprints = fingerprints.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public boolean contains(long value) {
+		long hash = HashUtils.fmix64(value + seed);
+		int h0 = (int) mulhi(hash, segmentCountLength);
+		int h1 = (h0 + segmentLength) ^ ((int) (hash >>> 18) & segmentLengthMask);
+		int h2 = (h0 + 2 * segmentLength) ^ ((int) hash & segmentLengthMask);
+		int f = (int) (hash ^ (hash >>> 32));
+		if (fingerprintBits == 8) {
+			return (byte) (f ^ fingerprints.get(h0) ^ fingerprints.get(h1) ^ fingerprints.get(h2)) == 0;
+		}
+		return (short) (f ^ fingerprints.getShort(h0 << 1) ^ fingerprints.getShort(h1 << 1)
+				^ fingerprints.getShort(h2 << 1)) == 0;
+	}
+
+	/**
+	 * 写出文件头和fingerprint，所有数字都是little endian
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(fingerprintBits).putLong(seed).putInt(segmentLength).putInt(segmentCount)
+				.putInt(arrayLength);
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(header.array());
+		ByteBuffer body = fingerprints.duplicate();
+		body.clear();
+		byte[] chunk = new byte[64 * 1024];
+		while (body.hasRemaining()) {
+			int n = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, n);
+			data.write(chunk, 0, n);
+		}
+		data.flush();
+	}
+
+	public void writeTo(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public int getFingerprintBits() {
+		return fingerprintBits;
+	}
+
+	/**
+	 * fingerprint数组占用的bit数
+	 * @return
+	 */
+	public long getBitSize() {
+		return (long) arrayLength * fingerprintBits;
+	}
+
+	public double getFalsePositiveProbability() {
+		return 1.0 / (1 << fingerprintBits);
+	}
+
+	/**
+	 * hash的第index个位置，和contains里的h0、h1、h2一样
+	 */
+	private int position(int index, long hash) {
+		long h = mulhi(hash, segmentCountLength) + (long) index * segmentLength;
+		long low = hash & ((1L << 36) - 1);
+		return (int) (h ^ ((low >>> (36 - 18 * index)) & segmentLengthMask));
+	}
+
+	/**
+	 * hash和n的无符号乘积的高64位，n < 2^32
+	 */
+	private static long mulhi(long hash, int n) {
+		long high = (hash >>> 32) * n;
+		long low = (hash & 0xFFFFFFFFL) * n;
+		return (high + (low >>> 32)) >>> 32;
+	}
+
+	/**
+	 * peel：反复找只被一个元素占用的位置，把这个元素和位置压栈，从另外两个位置里去掉它，
+	 * 所有元素都能压栈就按出栈顺序给每个元素的位置赋值
+	 * t2count的高6位是位置上的元素个数，低2位是这些元素在这个位置上的index(0,1,2)的异或，
+	 * t2hash是这些元素hash的异或，只剩一个元素时就是这个元素的hash和index
+	 * @param hashes 排序去重后的hash
+	 * @param size
+	 * @return 有环时返回false，需要换seed重试
+	 */
+	private boolean populate(long[] hashes, int size) {
+		byte[] t2count = new byte[arrayLength];
+		long[] t2hash = new long[arrayLength];
+		for (int i = 0; i < size; i++) {
+			long hash = hashes[i];
+			for (int index = 0; index < ARITY; index++) {
+				int h = position(index, hash);
+				int count = (t2count[h] & 0xFF) + 4;
+				if (count > 0xFF) {
+					return false;
+				}
+				t2count[h] = (byte) (count ^ index);
+				t2hash[h] ^= hash;
+			}
+		}
+
+		int[] alone = new int[arrayLength];
+		int queueSize = 0;
+		for (int i = 0; i < arrayLength; i++) {
+			if ((t2count[i] & 0xFF) >> 2 == 1) {
+				alone[queueSize++] = i;
+			}
+		}
+		long[] stackHash = hashes;
+		byte[] stackIndex = new byte[size];
+		int stackSize = 0;
+		int[] h012 = new int[5];
+		while (queueSize > 0) {
+			int i = alone[--queueSize];
+			if ((t2count[i] & 0xFF) >> 2 != 1) {
+				continue;
+			}
+			long hash = t2hash[i];
+			int found = t2count[i] & 3;
+			//hashes里已经压栈的元素不会再被读到，可以复用做栈
+			stackHash[stackSize] = hash;
+			stackIndex[stackSize] = (byte) found;
+			stackSize++;
+			h012[0] = position(0, hash);
+			h012[1] = position(1, hash);
+			h012[2] = position(2, hash);
+			h012[3] = h012[0];
+			h012[4] = h012[1];
+			for (int n = 1; n <= 2; n++) {
+				int other = h012[found + n];
+				int count = t2count[other] & 0xFF;
+				if (count >> 2 == 2) {
+					alone[queueSize++] = other;
+				}
+				t2count[other] = (byte) ((count - 4) ^ ((found + n) % 3));
+				t2hash[other] ^= hash;
+			}
+		}
+		if (stackSize != size) {
+			return false;
+		}
+
+		for (int i = size - 1; i >= 0; i--) {
+			long hash = stackHash[i];
+			int found = stackIndex[i];
+			h012[0] = position(0, hash);
+			h012[1] = position(1, hash);
+			h012[2] = position(2, hash);
+			h012[3] = h012[0];
+			h012[4] = h012[1];
+			int f = (int) (hash ^ (hash >>> 32));
+			if (fingerprintBits == 8) {
+				fingerprints.put(h012[found],
+						(byte) (f ^ fingerprints.get(h012[found + 1]) ^ fingerprints.get(h012[found + 2])));
+			} else {
+				fingerprints.putShort(h012[found] << 1, (short) (f ^ fingerprints.getShort(h012[found + 1] << 1)
+						^ fingerprints.getShort(h012[found + 2] << 1)));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 并行计算hash，叶子任务只计算各自区间的hash，不排序；全部算完后由根任务对整个数组做一次Arrays.parallelSort
+	 */
+	private static class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 3581296648407563417L;
+
+		private final long[] keys;
+		private final long[] hashes;
+		private final long seed;
+		private final int from;
+		private final int to;
+		private final boolean root;
+
+		HashTask(long[] keys, long[] hashes, long seed, int from, int to) {
+			this(keys, hashes, seed, from, to, true);
+		}
+
+		private HashTask(long[] keys, long[] hashes, long seed, int from, int to, boolean root) {
+			this.keys = keys;
+			this.hashes = hashes;
+			this.seed = seed;
+			this.from = from;
+			this.to = to;
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= HASH_TASK_SIZE) {
+				for (int i = from; i < to; i++) {
+					hashes[i] = HashUtils.fmix64(keys[i] + seed);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new HashTask(keys, hashes, seed, from, middle, false),
+						new HashTask(keys, hashes, seed, middle, to, false));
+			}
+			if (root) {
+				//在pool的worker线程里调用，排序也在这个pool上并行
+				Arrays.parallelSort(hashes);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int n = 10000000;
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = i * 31L;
+		}
+		for (int bits = 8; bits <= 16; bits += 8) {
+			long start = System.nanoTime();
+			BinaryFuseFilter filter = build(keys, bits);
+			long buildMillis = (System.nanoTime() - start) / 1000000;
+			for (int i = 0; i < n; i++) {
+				if (!filter.contains(keys[i])) {
+					throw new IllegalStateException("false negative: " + keys[i]);
+				}
+			}
+			File file = File.createTempFile("fuse", ".bin");
+			file.deleteOnExit();
+			filter.writeTo(file);
+			BinaryFuseFilter mapped = map(file);
+			int falsePositive = 0;
+			start = System.nanoTime();
+			for (long i = 0; i < n; i++) {
+				if (mapped.contains(i * 31 + 1)) {
+					falsePositive++;
+				}
+			}
+			long containsNanos = (System.nanoTime() - start) / n;
+			System.out.println(bits + " bits: build " + buildMillis + "ms, bits/key=" + filter.getBitSize() / (double) n
+					+ ", fpp=" + falsePositive / (double) n + ", contains " + containsNanos + "ns");
+		}
+
+		BloomFilter bloom = new BloomFilter(n, 1.0 / 256);
+		for (int i = 0; i < n; i++) {
+			bloom.add(keys[i]);
+		}
+		long start = System.nanoTime();
+		int falsePositive = 0;
+		for (long i = 0; i < n; i++) {
+			if (bloom.contains(i * 31 + 1)) {
+				falsePositive++;
+			}
+		}
+		System.out.println("bloomfilter: bits/key=" + bloom.size() / (double) n + ", fpp=" + falsePositive / (double) n
+				+ ", contains " + (System.nanoTime() - start) / n + "ns");
+	}
+}
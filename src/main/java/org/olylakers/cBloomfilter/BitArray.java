@@ -0,0 +1,200 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * long下标的bit数组，java.util.BitSet的下标是int，最多只能有2^31个bit
+ * bit i在第i/64个long的第i%64位，和BitSet一致
+ * 存储是可以替换的：
+ * heap: 存在java堆里，见HeapBitArray
+ * atomic: 存在java堆里，用CAS修改，多线程并发add不会丢bit，见AtomicBitArray
+ * direct: 存在堆外的direct ByteBuffer里，不占java堆，也没有GC压力
+ * mapped: 映射到文件，重启后直接map回来就可以用，不需要反序列化
+ *
+ * @author olylakers
+ *
+ */
+public abstract class BitArray {
+
+	/**
+	 * 堆内存储
+	 * @param bitSize
+	 * @return
+	 */
+	public static BitArray heap(long bitSize) {
+		return new HeapBitArray(bitSize);
+	}
+
+	/**
+	 * 线程安全的堆内存储
+	 * @param bitSize
+	 * @return
+	 */
+	public static BitArray atomic(long bitSize) {
+		return new AtomicBitArray(bitSize);
+	}
+
+	/**
+	 * 堆外存储，内存在BitArray被GC时释放
+	 * @param bitSize
+	 * @return
+	 */
+	public static BitArray direct(long bitSize) {
+		return ByteBufferBitArray.allocateDirect(bitSize);
+	}
+
+	/**
+	 * 映射到文件，文件不存在时创建并全部置0，存在时直接使用里面的数据，文件大小必须和bitSize一致，
+	 * 修改由操作系统异步写回文件，需要落盘时调用flush
+	 * @param file
+	 * @param bitSize
+	 * @return
+	 * @throws IOException
+	 */
+	public static BitArray mapped(File file, long bitSize) throws IOException {
+		return ByteBufferBitArray.map(file, bitSize);
+	}
+
+	/**
+	 * bitSize对应的long的个数
+	 * @param bitSize
+	 * @return
+	 */
+	static long words(long bitSize) {
+		if (bitSize <= 0) {
+			throw new IllegalArgumentException("bitSize should be positive");
+		}
+		return ((bitSize - 1) >>> 6) + 1;
+	}
+
+	public abstract long getWord(long wordIndex);
+
+	public abstract void setWord(long wordIndex, long word);
+
+	public abstract long bitSize();
+
+	public abstract long wordCount();
+
+	public boolean get(long index) {
+		return (getWord(index >>> 6) & (1L << index)) != 0;
+	}
+
+	public void set(long index) {
+		long word = index >>> 6;
+		setWord(word, getWord(word) | (1L << index));
+	}
+
+	/**
+	 * 把bit置1
+	 * @param index
+	 * @return bit原来是0时返回true
+	 */
+	public boolean testAndSet(long index) {
+		if (get(index)) {
+			return false;
+		}
+		set(index);
+		return true;
+	}
+
+	public void set(long index, boolean value) {
+		if (value) {
+			set(index);
+		} else {
+			long word = index >>> 6;
+			setWord(word, getWord(word) & ~(1L << index));
+		}
+	}
+
+	/**
+	 * 当wordIndex处的long等于expect时改成update，这里用对象锁保证原子性，
+	 * AtomicBitArray用CAS实现，不需要加锁
+	 * @param wordIndex
+	 * @param expect
+	 * @param update
+	 * @return 修改成功返回true
+	 */
+	public synchronized boolean compareAndSetWord(long wordIndex, long expect, long update) {
+		if (getWord(wordIndex) != expect) {
+			return false;
+		}
+		setWord(wordIndex, update);
+		return true;
+	}
+
+	public void clear() {
+		for (long i = 0; i < wordCount(); i++) {
+			setWord(i, 0L);
+		}
+	}
+
+	/**
+	 * 值为1的bit数
+	 * @return
+	 */
+	public long cardinality() {
+		long count = 0;
+		for (long i = 0; i < wordCount(); i++) {
+			count += Long.bitCount(getWord(i));
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		for (long i = 0; i < wordCount(); i++) {
+			if (getWord(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 把从wordIndex开始的count个long写到dst的当前位置，dst必须是little endian，
+	 * 用于快照的批量读写，子类可以按页批量复制
+	 * @param wordIndex
+	 * @param dst
+	 * @param count
+	 */
+	void getWords(long wordIndex, ByteBuffer dst, int count) {
+		for (int i = 0; i < count; i++) {
+			dst.putLong(getWord(wordIndex + i));
+		}
+	}
+
+	/**
+	 * 从src的当前位置读count个long，写到wordIndex开始的位置，src必须是little endian
+	 * @param wordIndex
+	 * @param src
+	 * @param count
+	 */
+	void setWords(long wordIndex, ByteBuffer src, int count) {
+		for (int i = 0; i < count; i++) {
+			setWord(wordIndex + i, src.getLong());
+		}
+	}
+
+	/**
+	 * 把修改写回存储介质，只有mapped需要
+	 */
+	public void flush() {
+	}
+
+	/**
+	 * 复制成java.util.BitSet，只有bitSize不超过Integer.MAX_VALUE时才可以
+	 * @return
+	 */
+	public BitSet toBitSet() {
+		if (bitSize() > Integer.MAX_VALUE) {
+			throw new UnsupportedOperationException("BitSet can not hold " + bitSize() + " bits");
+		}
+		long[] words = new long[(int) wordCount()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = getWord(i);
+		}
+		return BitSet.valueOf(words);
+	}
+}
@@ -0,0 +1,156 @@
+package org.olylakers.cBloomfilter;
+
+import org.olylakers.bloomfilter.HashUtils;
+
+/**
+ * blocked bloomfilter，一个hash选出一个512bit(64字节，一个cache line)的block，k个bit都落在这个block里，
+ * 每次add/contains只访问一个cache line，redis版本也只需要一次GETRANGE就能读出整个block
+ * 代价是同样的m和k下，误差率比普通bloomfilter略高，可以用falsePositiveProbability来计算
+ *
+ * @author olylakers
+ *
+ */
+public class BlockedBloomFilter extends BloomFilter {
+	private static final long serialVersionUID = 2309853520472412165L;
+
+	public static final int BLOCK_BITS = HashUtils.BLOCK_BITS;
+
+	/**
+	 * 计算blocked bloomFilter的max bit size，从普通bloomfilter的m开始每次加1%，直到误差率满足要求
+	 * @param maxNum bloomfilter期望放入的元素最大个数
+	 * @param errorRate 容错率
+	 * @return BLOCK_BITS的整数倍
+	 */
+	public static long optimalM(double maxNum, double errorRate) {
+		long m = roundToBlock(BloomFilter.optimalM(maxNum, errorRate));
+		while (falsePositiveProbability(maxNum, m, optimalK(maxNum, m)) > errorRate) {
+			m = roundToBlock(m + Math.max(BLOCK_BITS, m / 100));
+		}
+		return m;
+	}
+
+	/**
+	 * 计算blocked bloomFilter的k，在普通bloomfilter的k附近找误差率最低的k
+	 * @param maxNum bloomfilter期望放入的元素最大个数
+	 * @param maxBitSize bloomfilter的bits
+	 * @return
+	 */
+	public static int optimalK(double maxNum, long maxBitSize) {
+		int classicK = Math.max(1, (int) Math.ceil(Math.log(2) * maxBitSize / maxNum));
+		int bestK = 1;
+		double best = Double.MAX_VALUE;
+		for (int k = 1; k <= Math.min(2 * classicK, BLOCK_BITS); k++) {
+			double fpp = falsePositiveProbability(maxNum, maxBitSize, k);
+			if (fpp < best) {
+				best = fpp;
+				bestK = k;
+			}
+		}
+		return bestK;
+	}
+
+	/**
+	 * 计算blocked bloomfilter的误差率，参考Putze, Sanders, Singler: Cache-, Hash- and Space-Efficient Bloom Filters
+	 * 每个block里的元素个数服从均值为n*B/m的泊松分布，一个block里有i个元素时，误差率就是m=B的普通bloomfilter的误差率，
+	 * 对所有i加权求和：FPR = sum(Poisson(i; n*B/m) * (1 - (1 - 1/B)^(k*i))^k)
+	 *
+	 * @param n 放入的元素个数
+	 * @param m bit数
+	 * @param k hash函数个数
+	 * @return
+	 */
+	public static double falsePositiveProbability(double n, double m, int k) {
+		double lambda = n * BLOCK_BITS / m;
+		if (lambda <= 0) {
+			return 0;
+		}
+		double logLambda = Math.log(lambda);
+		double logZeroBit = Math.log(1 - 1.0 / BLOCK_BITS);
+		int maxI = (int) Math.ceil(lambda + 10 * Math.sqrt(lambda) + 20);
+		double fpp = 0;
+		double logFactorial = 0;
+		for (int i = 0; i <= maxI; i++) {
+			if (i > 0) {
+				logFactorial += Math.log(i);
+			}
+			double poisson = Math.exp(i * logLambda - lambda - logFactorial);
+			double inner = Math.pow(1 - Math.exp(k * i * logZeroBit), k);
+			fpp += poisson * inner;
+		}
+		return fpp;
+	}
+
+	private static long roundToBlock(long m) {
+		return (m + BLOCK_BITS - 1) / BLOCK_BITS * BLOCK_BITS;
+	}
+
+	public BlockedBloomFilter(double maxNum, double errorRate) {
+		this(optimalM(maxNum, errorRate), optimalK(maxNum, optimalM(maxNum, errorRate)));
+	}
+
+	/**
+	 * @param m 会向上取整为BLOCK_BITS的整数倍
+	 * @param k
+	 */
+	public BlockedBloomFilter(long m, int k) {
+		this(BitArray.heap(roundToBlock(m)), k);
+	}
+
+	/**
+	 * 使用指定的存储
+	 * @param bloom bitSize必须是BLOCK_BITS的整数倍
+	 * @param k
+	 */
+	public BlockedBloomFilter(BitArray bloom, int k) {
+		super(bloom, bloom.bitSize(), k);
+		if (bloom.bitSize() % BLOCK_BITS != 0) {
+			throw new IllegalArgumentException("bitSize should be a multiple of " + BLOCK_BITS);
+		}
+		if (k <= 0 || k > BLOCK_BITS) {
+			throw new IllegalArgumentException("k should be in [1, " + BLOCK_BITS + "]");
+		}
+	}
+
+	/**
+	 * blocked layout有自己的hash，不受hashAlgorithm影响
+	 */
+	@Override
+	protected long[] hash(long value) {
+		return HashUtils.blockedOffset(value, k, m, HashUtils.offsetBuffer(k));
+	}
+
+	@Override
+	protected long[] hashAll(long[] values, int from, int count, long[] positions) {
+		return HashUtils.blockedOffsets(values, from, count, k, m, positions);
+	}
+
+	@Override
+	public double getFalsePositiveProbability(long n) {
+		return falsePositiveProbability(n, m, k);
+	}
+
+	public static void main(String[] args) {
+		int n = 10000000;
+		double errorRate = 0.00001;
+		long classicM = BloomFilter.optimalM(n, errorRate);
+		long blockedM = optimalM(n, errorRate);
+		int blockedK = optimalK(n, blockedM);
+		System.out.println("classic m=" + classicM + ", k=" + BloomFilter.optimalK(n, classicM));
+		System.out.println("blocked m=" + blockedM + ", k=" + blockedK + ", fpp="
+				+ falsePositiveProbability(n, blockedM, blockedK));
+		System.out.println("blocked fpp with classic m=" + falsePositiveProbability(n, classicM, blockedK));
+
+		BlockedBloomFilter filter = new BlockedBloomFilter(100000, 0.001);
+		for (long i = 0; i < 100000; i++) {
+			filter.add(i);
+		}
+		int falsePositive = 0;
+		for (long i = 100000; i < 1100000; i++) {
+			if (filter.contains(i)) {
+				falsePositive++;
+			}
+		}
+		System.out.println("expected fpp=" + filter.getFalsePositiveProbability(100000)
+				+ ", actual fpp=" + falsePositive / 1000000.0);
+	}
+}
@@ -1,15 +1,43 @@
 package org.olylakers.cBloomfilter;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.BitSet;
 
+import org.olylakers.bloomfilter.HashAlgorithm;
+import org.olylakers.bloomfilter.HashUtils;
+
 public class BloomFilter implements Cloneable, Serializable {
     private static final long serialVersionUID = -751339780541384687L;
     
-    protected BitSet bloom;
+    protected BitArray bloom;
 	protected int k;
-	protected int m;
-	protected final static int seed32 = 89478583;
+	protected long m;
+	/**
+	 * 默认用hadoop的murmur hash，和之前的数据保持兼容，新的filter可以用MURMUR3，
+	 * m超过Integer.MAX_VALUE时只能用MURMUR3
+	 */
+	protected HashAlgorithm hashAlgorithm = HashAlgorithm.HADOOP_MURMUR;
+
+	/**
+	 * containsAll每组处理的元素个数，一组的位置要放在L1里
+	 */
+	private static final int BATCH_LANES = 256;
+
+	/**
+	 * 序列化的字段，老版本的bloom是BitSet、m是int，为了还能读老版本的数据，m还是int(超过Integer.MAX_VALUE时是
+	 * Integer.MAX_VALUE)，真正的bit数在bitSize里，bloom按Object读写，见readObject
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("bloom", Object.class),
+			new ObjectStreamField("k", int.class),
+			new ObjectStreamField("m", int.class),
+			new ObjectStreamField("bitSize", long.class),
+			new ObjectStreamField("hashAlgorithm", HashAlgorithm.class) };
 
 	/**
 	 * 计算bloomFilter的max bit size
@@ -17,8 +45,8 @@ public class BloomFilter implements Cloneable, Serializable {
 	 * @param errorRate 容错率
 	 * @return
 	 */
-	public static int optimalM(double maxNum, double errorRate) {
-		return (int) Math.ceil(-1 * maxNum * Math.log(errorRate) / Math.pow(Math.log(2), 2));
+	public static long optimalM(double maxNum, double errorRate) {
+		return (long) Math.ceil(-1 * maxNum * Math.log(errorRate) / Math.pow(Math.log(2), 2));
 	}
 
     /**
@@ -27,7 +55,7 @@ public class BloomFilter implements Cloneable, Serializable {
      * @param maxBitSize bloomfilter的bits
      * @return
      */
-	public static int optimalK(double maxNum, int maxBitSize) {
+	public static int optimalK(double maxNum, long maxBitSize) {
 		return (int) Math.ceil(Math.log(2) * maxBitSize / maxNum);
 	}
 
@@ -35,27 +63,47 @@ public class BloomFilter implements Cloneable, Serializable {
 		this(optimalM(maxNum, errorRate), optimalK(maxNum, optimalM(maxNum, errorRate)));
 	}
 
-	public BloomFilter(int m, int k) {
-		this(new BitSet(m), m, k);
+	public BloomFilter(long m, int k) {
+		this(BitArray.heap(m), m, k);
+	}
+
+	public BloomFilter(long m, int k, HashAlgorithm hashAlgorithm) {
+		this(BitArray.heap(m), m, k);
+		setHashAlgorithm(hashAlgorithm);
+	}
+
+	/**
+	 * 使用指定的存储，比如堆外的BitArray.direct或者映射到文件的BitArray.mapped，m就是bloom的bitSize
+	 * @param bloom
+	 * @param k
+	 */
+	public BloomFilter(BitArray bloom, int k) {
+		this(bloom, bloom.bitSize(), k);
 	}
 
 	
-	protected BloomFilter(BitSet bloom, int m, int k) {
+	protected BloomFilter(BitArray bloom, long m, int k) {
 		this.m = m;
 		this.bloom = bloom;
 		this.k = k;
+		this.hashAlgorithm = HashAlgorithm.forBitSize(HashAlgorithm.HADOOP_MURMUR, m);
 	}
 	
 	protected BloomFilter() {
 		
 	}
 
+	/**
+	 * @param value
+	 * @return 有bit从0变成1时返回true，返回false说明value之前已经add过(或者是误判)
+	 */
 	public boolean add(long value) {
-	    int[] positions =  hashMurmur(long2bytes(value));
-        for (int position : positions) {
-            setBit(position);
-        }
-        return true;
+	    long[] positions = hash(value);
+	    boolean changed = false;
+	    for (int i = 0; i < k; i++) {
+	        changed |= bloom.testAndSet(positions[i]);
+	    }
+	    return changed;
 	}
 
 
@@ -64,133 +112,147 @@ public class BloomFilter implements Cloneable, Serializable {
 	}
 
 	public boolean contains(long value) {
-	    int[] positions =  hashMurmur(long2bytes(value));
-		for (int position : positions)
-			if (!getBit(position)){
+	    long[] positions = hash(value);
+		for (int i = 0; i < k; i++)
+			if (!getBit(positions[i])){
 	             return false;
 			}
 		return true;
 	}
 
-	protected boolean getBit(int index) {
-		return bloom.get(index);
-	}
-
-
-	protected void setBit(int index) {
-		setBit(index, true);
+	/**
+	 * 批量contains，结果和逐个contains一样，第i个结果写在resultBitmap第i / 64个long的第i % 64位，1表示可能存在
+	 * 每BATCH_LANES个元素一组，先用hashAll一起算出这一组所有的位置，再分k轮检查：
+	 * 第j轮只读还活着的元素的第j个位置所在的word，取出的bit直接加到下标上把活着的元素压缩到数组前面，
+	 * 所以和逐个contains一样遇到0就不再读后面的位置，但没有和数据相关的分支，
+	 * 一轮里各个元素的读互相独立，多个cache miss可以同时在路上，起到预取的作用
+	 * 大的filter(远大于cache)批量越大越划算
+	 * @param values
+	 * @param resultBitmap 长度至少(values.length + 63) / 64，前面这些long会被覆盖
+	 * @return 可能存在的元素个数
+	 */
+	public int containsAll(long[] values, long[] resultBitmap) {
+		int n = values.length;
+		int resultWords = (n + 63) >>> 6;
+		if (resultBitmap.length < resultWords) {
+			throw new IllegalArgumentException("resultBitmap needs " + resultWords + " longs for " + n + " values");
+		}
+		Arrays.fill(resultBitmap, 0, resultWords, 0L);
+		int lanes = Math.min(BATCH_LANES, n);
+		long[] positions = new long[lanes * k];
+		int[] alive = new int[lanes];
+		int hits = 0;
+		for (int from = 0; from < n; from += BATCH_LANES) {
+			int count = Math.min(BATCH_LANES, n - from);
+			hashAll(values, from, count, positions);
+			for (int i = 0; i < count; i++) {
+				alive[i] = i;
+			}
+			for (int j = 0; j < k && count > 0; j++) {
+				int next = 0;
+				for (int i = 0; i < count; i++) {
+					int lane = alive[i];
+					long position = positions[lane * k + j];
+					alive[next] = lane;
+					//long的移位只用低6位，所以不用& 63
+					next += (int) (bloom.getWord(position >>> 6) >>> position) & 1;
+				}
+				count = next;
+			}
+			for (int i = 0; i < count; i++) {
+				int index = from + alive[i];
+				resultBitmap[index >>> 6] |= 1L << index;
+			}
+			hits += count;
+		}
+		return hits;
 	}
 
-	protected void setBit(int index, boolean to) {
-		bloom.set(index, to);
+	/**
+	 * 一组value的位置，values[from + i]的k个位置在positions[i * k, i * k + k)，和hash的结果一样
+	 * @param values
+	 * @param from
+	 * @param count
+	 * @param positions
+	 * @return
+	 */
+	protected long[] hashAll(long[] values, int from, int count, long[] positions) {
+		return getHashAlgorithm().offsets(values, from, count, k, m, positions);
 	}
 
-	public BitSet getBitSet() {
-		return bloom;
-	}
-	
 	/**
-	 * 从hadoop代码里扣出来的hash 函数
+	 * 计算value的k个位置，结果写在线程本地的buffer里，只有前k个是有效的，下一次hash会覆盖
 	 * @param value
 	 * @return
 	 */
-	protected int[] hashMurmur(byte[] value) {
-		int[] positions = new int[k];
-
-		int hashes = 0;
-		int lastHash = 0;
-		byte[] data = (byte[]) value.clone();
-		while (hashes < k) {
-			for (int i = 0; i < value.length; i++) {
-				if (data[i] == 127) {
-					data[i] = 0;
-					continue;
-				} else {
-					data[i]++;
-					break;
-				}
-			}
-
-			// 'm' and 'r' are mixing constants generated offline.
-			// They're not really 'magic', they just happen to work well.
-			int m = 0x5bd1e995;
-			int r = 24;
-
-			// Initialize the hash to a 'random' value
-			int len = data.length;
-			int h = seed32 ^ len;
-
-			int i = 0;
-			while (len >= 4) {
-				int k = data[i + 0] & 0xFF;
-				k |= (data[i + 1] & 0xFF) << 8;
-				k |= (data[i + 2] & 0xFF) << 16;
-				k |= (data[i + 3] & 0xFF) << 24;
+	protected long[] hash(long value) {
+		return getHashAlgorithm().offset(value, k, m, HashUtils.offsetBuffer(k));
+	}
 
-				k *= m;
-				k ^= k >>> r;
-				k *= m;
+	protected boolean getBit(long index) {
+		return bloom.get(index);
+	}
 
-				h *= m;
-				h ^= k;
 
-				i += 4;
-				len -= 4;
-			}
-
-			switch (len) {
-			case 3:
-				h ^= (data[i + 2] & 0xFF) << 16;
-			case 2:
-				h ^= (data[i + 1] & 0xFF) << 8;
-			case 1:
-				h ^= (data[i + 0] & 0xFF);
-				h *= m;
-			}
+	protected void setBit(long index) {
+		bloom.set(index);
+	}
 
-			h ^= h >>> 13;
-			h *= m;
-			h ^= h >>> 15;
+	protected void setBit(long index, boolean to) {
+		bloom.set(index, to);
+	}
 
-			lastHash = rejectionSample(h);
-			if (lastHash != -1) {
-				positions[hashes++] = lastHash;
-			}
-		}
-		return positions;
+	/**
+	 * bit数组的一份拷贝，只有m不超过Integer.MAX_VALUE时才可以
+	 * @return
+	 */
+	public BitSet getBitSet() {
+		return bloom.toBitSet();
 	}
 
-	protected int rejectionSample(int random) {
-		random = Math.abs(random);
-		if (random > (2147483647 - 2147483647 % m)
-				|| random == Integer.MIN_VALUE)
-			return -1;
-		else
-			return random % m;
+	public BitArray getBitArray() {
+		return bloom;
 	}
 
+	/**
+	 * 存储是mapped时把修改写回文件
+	 */
+	public void flush() {
+		bloom.flush();
+	}
 
 	public synchronized boolean isEmpty() {
 		return bloom.isEmpty();
 	}
 
-	public double getFalsePositiveProbability(int n) {
-		return Math.pow((1 - Math.exp(-k * (double) n / (double) m)), k);
+	/**
+	 * 放入n个元素后的误差率：(1 - e^(-kn/m))^k
+	 * @param n 放入的元素个数
+	 * @param m bit数
+	 * @param k hash函数个数
+	 * @return
+	 */
+	public static double falsePositiveProbability(double n, double m, int k) {
+		return Math.pow((1 - Math.exp(-k * n / m)), k);
 	}
 
-	public double getBitsPerElement(int n) {
+	public double getFalsePositiveProbability(long n) {
+		return falsePositiveProbability(n, m, k);
+	}
+
+	public double getBitsPerElement(long n) {
 		return m / (double) n;
 	}
 
-	public double getBitZeroProbability(int n) {
-		return Math.pow(1 - (double) 1 / m, k * n);
+	public double getBitZeroProbability(long n) {
+		return Math.pow(1 - (double) 1 / m, (double) k * n);
 	}
 
-	public int size() {
+	public long size() {
 		return m;
 	}
 
-	public int getM() {
+	public long getM() {
 		return m;
 	}
 
@@ -199,6 +261,55 @@ public class BloomFilter implements Cloneable, Serializable {
 		return k;
 	}
 
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * 只能在add之前设置
+	 * @param hashAlgorithm
+	 */
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		if (m > hashAlgorithm.getMaxBitCount()) {
+			throw new IllegalArgumentException(hashAlgorithm + " can not address " + m + " bits");
+		}
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("bloom", bloom);
+		fields.put("k", k);
+		fields.put("m", (int) Math.min(m, Integer.MAX_VALUE));
+		fields.put("bitSize", m);
+		fields.put("hashAlgorithm", hashAlgorithm);
+		out.writeFields();
+	}
+
+	/**
+	 * 老版本的数据没有bitSize和hashAlgorithm，bloom是BitSet，转成BitArray.heap，hash是HADOOP_MURMUR
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		k = fields.get("k", 0);
+		long bitSize = fields.get("bitSize", 0L);
+		m = bitSize > 0 ? bitSize : fields.get("m", 0);
+		Object bits = fields.get("bloom", null);
+		if (bits instanceof BitSet) {
+			BitSet old = (BitSet) bits;
+			bloom = BitArray.heap(m);
+			for (int i = old.nextSetBit(0); i >= 0 && i < m; i = old.nextSetBit(i + 1)) {
+				bloom.set(i);
+			}
+		} else {
+			bloom = (BitArray) bits;
+		}
+		hashAlgorithm = (HashAlgorithm) fields.get("hashAlgorithm", null);
+		if (hashAlgorithm == null) {
+			hashAlgorithm = HashAlgorithm.HADOOP_MURMUR;
+		}
+	}
+
     public static byte[] long2bytes(long num) {
         byte[] b = new byte[8];
         for (int i=0;i<8;i++) {
@@ -213,7 +324,7 @@ public class BloomFilter implements Cloneable, Serializable {
 		sb.append("Bloom Filter, Parameters ");
 		sb.append("m = " + getM() + ", ");
 		sb.append("k = " + getK() + ", ");
-		for (int i = 0; i < m; i++) {
+		for (long i = 0; i < m; i++) {
 			sb.append(bloom.get(i) ? 1 : 0);
 			sb.append("\n");
 		}
@@ -0,0 +1,162 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 存在ByteBuffer里的BitArray，可以是堆外的direct buffer，也可以是映射到文件的MappedByteBuffer
+ * ByteBuffer的下标是int，所以按每页2^27个long(1G)分页，long按little endian存放，文件在不同机器上通用
+ * 序列化时复制成HeapBitArray
+ *
+ * @author olylakers
+ *
+ */
+public class ByteBufferBitArray extends BitArray implements Serializable {
+	private static final long serialVersionUID = -3164589020385474318L;
+
+	private static final int PAGE_SHIFT = 27;
+	private static final long PAGE_SIZE = 1L << PAGE_SHIFT;
+	private static final long PAGE_MASK = PAGE_SIZE - 1;
+
+	private final long bitSize;
+	private final long wordCount;
+	private final transient ByteBuffer[] pages;
+
+	static ByteBufferBitArray allocateDirect(long bitSize) {
+		long wordCount = words(bitSize);
+		ByteBuffer[] pages = new ByteBuffer[pageCount(wordCount)];
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = ByteBuffer.allocateDirect(pageBytes(wordCount, i));
+		}
+		return new ByteBufferBitArray(bitSize, pages);
+	}
+
+	static ByteBufferBitArray map(File file, long bitSize) throws IOException {
+		long wordCount = words(bitSize);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() == 0) {
+				raf.setLength(wordCount << 3);
+			} else if (raf.length() != wordCount << 3) {
+				throw new IllegalArgumentException(file + " has " + raf.length() + " bytes, " + (wordCount << 3)
+						+ " bytes expected for " + bitSize + " bits");
+			}
+			return map(raf.getChannel(), 0, bitSize, FileChannel.MapMode.READ_WRITE);
+		} finally {
+			//map之后关闭文件，映射依然有效
+			raf.close();
+		}
+	}
+
+	/**
+	 * 映射文件里从position开始的一段，用于直接映射快照文件里的数据
+	 * @param channel
+	 * @param position
+	 * @param bitSize
+	 * @param mode
+	 * @return
+	 * @throws IOException
+	 */
+	static ByteBufferBitArray map(FileChannel channel, long position, long bitSize, FileChannel.MapMode mode)
+			throws IOException {
+		long wordCount = words(bitSize);
+		ByteBuffer[] pages = new ByteBuffer[pageCount(wordCount)];
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = channel.map(mode, position + ((long) i << (PAGE_SHIFT + 3)), pageBytes(wordCount, i));
+		}
+		return new ByteBufferBitArray(bitSize, pages);
+	}
+
+	private static int pageCount(long wordCount) {
+		return (int) (((wordCount - 1) >>> PAGE_SHIFT) + 1);
+	}
+
+	private static int pageBytes(long wordCount, int page) {
+		return (int) (Math.min(PAGE_SIZE, wordCount - ((long) page << PAGE_SHIFT)) << 3);
+	}
+
+	private ByteBufferBitArray(long bitSize, ByteBuffer[] pages) {
+		this.bitSize = bitSize;
+		this.wordCount = words(bitSize);
+		this.pages = pages;
+		for (ByteBuffer page : pages) {
+			page.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	@Override
+	public long getWord(long wordIndex) {
+		return pages[(int) (wordIndex >>> PAGE_SHIFT)].getLong((int) (wordIndex & PAGE_MASK) << 3);
+	}
+
+	@Override
+	public void setWord(long wordIndex, long word) {
+		pages[(int) (wordIndex >>> PAGE_SHIFT)].putLong((int) (wordIndex & PAGE_MASK) << 3, word);
+	}
+
+	/**
+	 * 按页用ByteBuffer批量复制
+	 */
+	@Override
+	void getWords(long wordIndex, ByteBuffer dst, int count) {
+		while (count > 0) {
+			ByteBuffer page = pages[(int) (wordIndex >>> PAGE_SHIFT)].duplicate();
+			int offset = (int) (wordIndex & PAGE_MASK);
+			int n = Math.min(count, (page.capacity() >>> 3) - offset);
+			page.limit((offset + n) << 3).position(offset << 3);
+			dst.put(page);
+			wordIndex += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	void setWords(long wordIndex, ByteBuffer src, int count) {
+		while (count > 0) {
+			ByteBuffer page = pages[(int) (wordIndex >>> PAGE_SHIFT)].duplicate();
+			int offset = (int) (wordIndex & PAGE_MASK);
+			int n = Math.min(count, (page.capacity() >>> 3) - offset);
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + (n << 3));
+			page.position(offset << 3);
+			page.put(part);
+			src.position(src.position() + (n << 3));
+			wordIndex += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	public long bitSize() {
+		return bitSize;
+	}
+
+	@Override
+	public long wordCount() {
+		return wordCount;
+	}
+
+	@Override
+	public void flush() {
+		for (ByteBuffer page : pages) {
+			if (page instanceof MappedByteBuffer) {
+				((MappedByteBuffer) page).force();
+			}
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		HeapBitArray copy = new HeapBitArray(bitSize);
+		for (long i = 0; i < wordCount; i++) {
+			copy.setWord(i, getWord(i));
+		}
+		return copy;
+	}
+}
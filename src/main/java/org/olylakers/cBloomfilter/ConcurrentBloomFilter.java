@@ -0,0 +1,37 @@
+package org.olylakers.cBloomfilter;
+
+import org.olylakers.bloomfilter.HashAlgorithm;
+
+/**
+ * 线程安全的bloomfilter，bit存在AtomicBitArray里，add用CAS置位，
+ * 多个线程并发add/contains不需要外部加锁，add的返回值可以当作"是否是新元素"来用
+ * clear和并发的add之间没有原子性
+ *
+ * @author olylakers
+ *
+ */
+public class ConcurrentBloomFilter extends BloomFilter {
+	private static final long serialVersionUID = 6075318816470930529L;
+
+	public ConcurrentBloomFilter(double maxNum, double errorRate) {
+		this(optimalM(maxNum, errorRate), optimalK(maxNum, optimalM(maxNum, errorRate)));
+	}
+
+	public ConcurrentBloomFilter(long m, int k) {
+		super(BitArray.atomic(m), k);
+	}
+
+	public ConcurrentBloomFilter(long m, int k, HashAlgorithm hashAlgorithm) {
+		super(BitArray.atomic(m), k);
+		setHashAlgorithm(hashAlgorithm);
+	}
+
+	/**
+	 * 从快照恢复时使用，见FilterSnapshot
+	 * @param bloom
+	 * @param k
+	 */
+	ConcurrentBloomFilter(AtomicBitArray bloom, int k) {
+		super(bloom, k);
+	}
+}
@@ -0,0 +1,476 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.olylakers.bloomfilter.HashAlgorithm;
+import org.olylakers.bloomfilter.HashUtils;
+
+/**
+ * 场景的count bloomfilter是用两个bitset，一个存放bloom，一个存放count
+ * 这个实现通过一个long数组来实现count bloomfilter，把count和bloom信息存放在一起
+ * count bloomfilter
+ * 
+ * @author hantong
+ * 
+ */
+public final class CountingBloomFilter {
+
+	//之前用16个AtomicBoolean做分段锁，CAS失败时会直接跳过这次加减，现在每个桶所在的long单独CAS，不会丢失更新
+	//此外可以先对bizId做hash，把不同的bizId等分到不同的bloomfilter，那样并发冲突的几率会更低
+	//用原子变量来做并发控制，线上测试了下，先判断contains，如果contains不存在，则add。整个操作只需要0.006ms一次，
+	//用ReentrantLock也差不多是这个数量级的消耗；
+	//现在最大的问题不在于时间消耗，而在于内存使用，我们现在需要进行bizId去重的消息有近5kw，即需要add 5kw；
+	//虽然用户标记为已读就会remove掉，但就算最坏的情况下，只有20%的bizId没有被标记为已读，那每天也有1kw，
+	//按照一般的经验，去hash函数个数为10，那么bloomfilter的m是maxNum的是20倍时，误差率在十万分之一的级别
+	//但这个内存占用也是非常大的：1kw*20*4/(8*1024*1024)=96M,一天就需要近百M内存，这个基本不可能放java堆内了
+	//所以如果要用count bloomfilter的话，也只能考虑redis之类的集中bloomfilter，然后通过对user_id或者biz_id取模，把请求分散到不同的redis来降低并发压力
+	//buckets现在可以用BitArray.direct放到堆外，或者用BitArray.mapped映射到文件，不占java堆，重启后也不需要重新加载
+
+	/**
+	 * 存放count信息的数组，按long分页，桶的个数可以超过Integer.MAX_VALUE，
+	 * 可以放在堆外或者映射到文件，见BitArray
+	 */
+	private BitArray buckets;
+
+	/**
+	 * 存放count信息的数组长度
+	 */
+	private long maxBitSize;
+
+	/**
+	 * hash函数个数
+	 */
+	private int k;
+
+	/**
+	 * 默认用hadoop的murmur hash，和之前的数据保持兼容
+	 */
+	private HashAlgorithm hashAlgorithm = HashAlgorithm.HADOOP_MURMUR;
+
+	/**
+	 * 一般来说只要用4个bit来存放计数信息，就可以在获取得极低的误差
+	 */
+	private final static long BUCKET_MAX_VALUE = 15;
+
+	/**
+	 * write/readFields每次批量读写的long的个数
+	 */
+	private final static int WRITE_BATCH = 1024;
+
+	public CountingBloomFilter() {
+	}
+
+	/**
+	 * 指定bloomfilter的bit的最大值和哈希函数个数
+	 * @param maxBitSize
+	 * @param hashFunctionNum
+	 */
+	public CountingBloomFilter(long maxBitSize, int hashFunctionNum) {
+		this(newBuckets(maxBitSize), maxBitSize, hashFunctionNum);
+	}
+
+	/**
+	 * 使用指定的存储，比如堆外的BitArray.direct或者映射到文件的BitArray.mapped，
+	 * 只有BitArray.atomic的compareAndSetWord不需要加锁，其它存储并发add/remove时会在BitArray上加锁
+	 * @param buckets bitSize至少是bucketBits(maxBitSize)
+	 * @param maxBitSize
+	 * @param hashFunctionNum
+	 */
+	public CountingBloomFilter(BitArray buckets, long maxBitSize, int hashFunctionNum) {
+		if (buckets.wordCount() < buckets2words(maxBitSize)) {
+			throw new IllegalArgumentException("buckets should have " + bucketBits(maxBitSize) + " bits at least");
+		}
+		this.buckets = buckets;
+		this.maxBitSize = maxBitSize;
+		this.k = hashFunctionNum;
+		this.hashAlgorithm = HashAlgorithm.forBitSize(HashAlgorithm.HADOOP_MURMUR, maxBitSize);
+	}
+	
+	/**
+	 * 指定bloomfilter最大可add进去的元素个数的和容错率
+	 * @param maxExceptNum
+	 * @param errorRate
+	 */
+	public CountingBloomFilter(double maxExceptNum, float errorRate) {
+		this.maxBitSize = optimalM(maxExceptNum, errorRate);
+		this.k = optimalK(maxExceptNum, maxBitSize);
+		this.hashAlgorithm = HashAlgorithm.forBitSize(HashAlgorithm.HADOOP_MURMUR, maxBitSize);
+		buckets = newBuckets(maxBitSize);
+	}
+	
+	/**
+	 * 普通的bloomfilter是以bit来来保存信息，count bloomfilter用4个bit来保存count信息，
+	 * 所以内存占用是普通bloomfilter的4倍，4*maxBitsize，因为我们用long数组来保存计数的bucket，
+	 * long是64位的，所以这里需要除以16
+	 * @param maxBitSize
+	 * @return
+	 */
+	private static long buckets2words(long maxBitSize) {
+		return ((maxBitSize - 1) >>> 4) + 1;
+	}
+
+	/**
+	 * maxBitSize个桶需要的bit数，用来分配BitArray
+	 * @param maxBitSize
+	 * @return
+	 */
+	public static long bucketBits(long maxBitSize) {
+		return buckets2words(maxBitSize) << 6;
+	}
+
+	private static BitArray newBuckets(long maxBitSize) {
+		return BitArray.atomic(bucketBits(maxBitSize));
+	}
+
+	/**
+	 * 计算bloomFilter的max bit size
+	 * 
+	 * @param maxNum bloomfilter期望放入的元素最大个数
+	 * @param errorRate 容错率
+	 * @return
+	 */
+	public static long optimalM(double maxNum, double errorRate) {
+		return (long) Math.ceil(-1 * maxNum * Math.log(errorRate)
+				/ Math.pow(Math.log(2), 2));
+	}
+
+	/**
+	 * 计算bloomFilter的k
+	 * 
+	 * @param maxNum  bloomfilter期望放入的元素最大个数
+	 * @param maxBitSize bloomfilter的bits
+	 * @return
+	 */
+	public static int optimalK(double maxNum, long maxBitSize) {
+		return (int) Math.ceil(Math.log(2) * maxBitSize / maxNum);
+	}
+
+	public void add(long bizId) {
+		long[] hashes = hash(bizId);
+		for (int i = 0; i < k; i++) {
+			increment(hashes[i]);
+		}
+	}
+
+	public void remove(long bizId) {
+		if (contains(bizId)) {
+			long[] hashes = hash(bizId);
+			for (int i = 0; i < k; i++) {
+				decrement(hashes[i]);
+			}
+		}
+	}
+
+	/**
+	 * 桶的count加1，读出桶所在的long，算出新值后CAS写回，失败说明别的线程改了同一个long，重新读再试，
+	 * 所以并发add/remove不会丢失更新，也不需要锁
+	 * @param bucket
+	 */
+	private void increment(long bucket) {
+		// 找到对应的桶
+		long wordNum = bucket >>> 4; // 除以16，一个long有64个bit，用4个bit来保持count信息，long数组的每一个元素能记录16个hash位置的count信息
+		int bucketShift = (int) (bucket & 0x0f) << 2; // 模16，然后乘以4
+
+		long bucketMask = 15L << bucketShift;
+		for (;;) {
+			long word = buckets.getWord(wordNum);
+			long bucketValue = (word & bucketMask) >>> bucketShift;
+
+			//count已经到BUCKET_MAX_VALUE时不再加1，饱和之后也不会再减
+			if (bucketValue >= BUCKET_MAX_VALUE
+					|| buckets.compareAndSetWord(wordNum, word, word + (1L << bucketShift))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 桶的count减1，只有count值在[1,BUCKET_MAX_VALUE)之间时才减
+	 * @param bucket
+	 */
+	private void decrement(long bucket) {
+		long wordNum = bucket >>> 4; // 除以16
+		int bucketShift = (int) (bucket & 0x0f) << 2; // 模16，然后乘以4
+
+		long bucketMask = 15L << bucketShift;
+		for (;;) {
+			long word = buckets.getWord(wordNum);
+			long bucketValue = (word & bucketMask) >>> bucketShift;
+
+			if (bucketValue < 1 || bucketValue >= BUCKET_MAX_VALUE
+					|| buckets.compareAndSetWord(wordNum, word, word - (1L << bucketShift))) {
+				return;
+			}
+		}
+	}
+
+	public boolean contains(long bizId) {
+
+		long[] hashes = hash(bizId);
+
+		for (int i = 0; i < k; i++) {
+			// 找到对应的桶
+			long wordNum = hashes[i] >>> 4; // 除以16
+			int bucketShift = (int) (hashes[i] & 0x0f) << 2; // 模16，然后乘以4
+
+			long bucketMask = 15L << bucketShift;
+
+			if ((buckets.getWord(wordNum) & bucketMask) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * 估算一个key被添加了多少次
+	 * 
+	 * @param bizId
+	 * @return
+	 */
+	public int approximateCount(long bizId) {
+		int res = Integer.MAX_VALUE;
+		long[] hashes = hash(bizId);
+		for (int i = 0; i < k; i++) {
+			// 找到对应的桶
+			long wordNum = hashes[i] >>> 4; // 除以16
+			int bucketShift = (int) (hashes[i] & 0x0f) << 2; // 模16，乘以4
+
+			long bucketMask = 15L << bucketShift;
+			long bucketValue = (buckets.getWord(wordNum) & bucketMask) >>> bucketShift;
+			if (bucketValue < res)
+				res = (int) bucketValue;
+		}
+		if (res != Integer.MAX_VALUE) {
+			return res;
+		} else {
+			return 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder res = new StringBuilder();
+
+		for (long i = 0; i < maxBitSize; i++) {
+			if (i > 0) {
+				res.append(" ");
+			}
+
+			long wordNum = i >>> 4; // 除以16
+			int bucketShift = (int) (i & 0x0f) << 2; // 模16，然后乘以4
+
+			long bucketMask = 15L << bucketShift;
+			long bucketValue = (buckets.getWord(wordNum) & bucketMask) >>> bucketShift;
+
+			res.append(bucketValue);
+		}
+
+		return res.toString();
+	}
+
+	/**
+	 * 先写-2，再写long的maxBitSize、k和hashAlgorithm，之后是所有的long，按WRITE_BATCH个long批量写
+	 * 以前的格式没有k，readFields读出来的k是0，只能在readFields之后再设置，现在的格式不需要
+	 * 大的filter建议用FilterSnapshot，有校验和，还可以压缩稀疏的部分或者直接map
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(-2);
+		out.writeLong(this.maxBitSize);
+		out.writeInt(this.k);
+		out.writeInt(this.hashAlgorithm.getId());
+		long sizeInWords = buckets2words(maxBitSize);
+		byte[] batch = new byte[WRITE_BATCH << 3];
+		for (long i = 0; i < sizeInWords; i += WRITE_BATCH) {
+			int n = (int) Math.min(WRITE_BATCH, sizeInWords - i);
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			for (int j = 0; j < n; j++) {
+				buffer.putLong(buckets.getWord(i + j));
+			}
+			out.write(batch, 0, n << 3);
+		}
+	}
+
+	/**
+	 * 兼容三种格式：int的maxBitSize；-1加long的maxBitSize；-2加long的maxBitSize、k和hashAlgorithm
+	 * 前两种格式没有k，读完之后k不变
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readFields(DataInput in) throws IOException {
+		int size = in.readInt();
+		this.maxBitSize = size >= 0 ? size : in.readLong();
+		if (size == -2) {
+			this.k = in.readInt();
+			int hashId = in.readInt();
+			this.hashAlgorithm = HashAlgorithm.forId(hashId);
+			if (this.hashAlgorithm == null) {
+				throw new IOException("unknown hash algorithm " + hashId);
+			}
+		}
+		long sizeInWords = buckets2words(this.maxBitSize);
+		buckets = newBuckets(this.maxBitSize);
+		byte[] batch = new byte[WRITE_BATCH << 3];
+		for (long i = 0; i < sizeInWords; i += WRITE_BATCH) {
+			int n = (int) Math.min(WRITE_BATCH, sizeInWords - i);
+			in.readFully(batch, 0, n << 3);
+			ByteBuffer buffer = ByteBuffer.wrap(batch);
+			for (int j = 0; j < n; j++) {
+				buckets.setWord(i + j, buffer.getLong());
+			}
+		}
+	}
+
+	/**
+	 * 存储是mapped时把修改写回文件
+	 */
+	public void flush() {
+		buckets.flush();
+	}
+
+	/**
+	 * 计算bizId的k个位置，结果写在线程本地的buffer里，只有前k个是有效的，下一次hash会覆盖
+	 * @param bizId
+	 * @return
+	 */
+	private long[] hash(long bizId) {
+		return hashAlgorithm.offset(bizId, k, maxBitSize, HashUtils.offsetBuffer(k));
+	}
+
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * 桶的个数
+	 * @return
+	 */
+	public long getMaxBitSize() {
+		return maxBitSize;
+	}
+
+	public BitArray getBuckets() {
+		return buckets;
+	}
+
+	/**
+	 * 只能在add之前设置
+	 * @param hashAlgorithm
+	 */
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		if (maxBitSize > hashAlgorithm.getMaxBitCount()) {
+			throw new IllegalArgumentException(hashAlgorithm + " can not address " + maxBitSize + " bits");
+		}
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	public static byte[] long2bytes(long num) {
+		byte[] b = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			b[i] = (byte) (num >>> (56 - (i * 8)));
+		}
+		return b;
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+//		CountingBloomFilter countingBloomFilter = new CountingBloomFilter(10000, 0.0001f);
+//		countingBloomFilter.add(213131313L);
+//		System.out.println(countingBloomFilter.contains(213131313L));
+//		Thread.sleep(100000000l);
+		long maxNum = 10000000;
+		int mod = 1;
+		long maxBitSize = optimalM(maxNum/mod, 0.00001f);
+		int k = optimalK(maxNum/mod, maxBitSize);
+		System.out.println(maxNum/mod);
+		System.out.println(maxBitSize);
+		System.out.println(k);
+		System.out.println(maxBitSize*4L/8/1024/1024);
+
+		int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+		for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+			stress(threads);
+		}
+	}
+
+	/**
+	 * 并发测试：threads个线程同时add各自的一部分bizId，结果要和单线程add完全一样，
+	 * 然后同时remove，所有的桶都应该和单线程remove之后一样，有丢失的更新就会抛异常
+	 * @param threads
+	 * @throws InterruptedException
+	 */
+	private static void stress(final int threads) throws InterruptedException {
+		final int num = 1000000;
+		final CountingBloomFilter filter = new CountingBloomFilter(num, 0.001f);
+		CountingBloomFilter expected = new CountingBloomFilter(num, 0.001f);
+		for (long bizId = 0; bizId < num; bizId++) {
+			expected.add(bizId);
+		}
+
+		long start = System.nanoTime();
+		runConcurrently(threads, num, new Task() {
+			public void run(long bizId) {
+				filter.add(bizId);
+			}
+		});
+		long addNanos = System.nanoTime() - start;
+		assertSameBuckets(expected, filter, "add");
+
+		for (long bizId = 0; bizId < num; bizId++) {
+			expected.remove(bizId);
+		}
+		start = System.nanoTime();
+		runConcurrently(threads, num, new Task() {
+			public void run(long bizId) {
+				filter.remove(bizId);
+			}
+		});
+		long removeNanos = System.nanoTime() - start;
+		assertSameBuckets(expected, filter, "remove");
+
+		System.out.println(threads + " threads, add " + num * 1000000L / addNanos + " ops/ms, remove "
+				+ num * 1000000L / removeNanos + " ops/ms");
+	}
+
+	private interface Task {
+		void run(long bizId);
+	}
+
+	/**
+	 * [0, num)的bizId分给threads个线程，第i个线程处理bizId % threads == i的bizId
+	 */
+	private static void runConcurrently(final int threads, final int num, final Task task) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int from = i;
+			workers[i] = new Thread() {
+				public void run() {
+					for (long bizId = from; bizId < num; bizId += threads) {
+						task.run(bizId);
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	private static void assertSameBuckets(CountingBloomFilter expected, CountingBloomFilter actual, String op) {
+		for (long i = 0; i < expected.buckets.wordCount(); i++) {
+			if (expected.buckets.getWord(i) != actual.buckets.getWord(i)) {
+				throw new IllegalStateException("lost " + op + " at word " + i);
+			}
+		}
+	}
+}
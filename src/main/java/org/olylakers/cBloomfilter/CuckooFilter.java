@@ -0,0 +1,322 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import org.olylakers.bloomfilter.HashUtils;
+
+/**
+ * cuckoo filter，参考Fan, Andersen, Kaminsky, Mitzenmacher: Cuckoo Filter: Practically Better Than Bloom
+ * 每个元素只存一个fingerprintBits位的指纹，放在两个候选桶i1、i2之一，i2 = i1 ^ hash(指纹)，每个桶4个槽，
+ * 指纹紧凑地存放在BitArray的long里，0表示空槽
+ * 和CountingBloomFilter一样支持remove和approximateCount，但是：
+ * 误差率1e-5时每个元素约需要(log2(1/ε) + 3) / 0.95 ≈ 21bit(桶数向上取2的幂，最多再翻倍)，CountingBloomFilter要4 * 24bit，
+ * 查询只需要读两个桶，而不是k个位置；remove不会因为计数饱和而失效，但只能remove add过的元素
+ * 同一个元素最多add 2 * BUCKET_SIZE次
+ * add时两个桶都满了就随机踢出一个指纹，放到它的另一个桶里，最多踢MAX_KICKS次，
+ * 还是放不下就把踢过的指纹全部复原，返回false，filter已满
+ * 和BloomFilter一样不是线程安全的
+ *
+ * @author olylakers
+ *
+ */
+public class CuckooFilter implements Serializable {
+	private static final long serialVersionUID = -6571392265127308125L;
+
+	public static final int BUCKET_SIZE = 4;
+
+	public static final int MAX_KICKS = 500;
+
+	/**
+	 * 桶的平均填充率，4个槽的cuckoo filter可以到95%
+	 */
+	private static final double LOAD_FACTOR = 0.95;
+
+	private final BitArray table;
+	private final int fingerprintBits;
+	private final int fingerprintMask;
+	private final int bucketMask;
+	private long count;
+	private final Random random = new Random();
+
+	/**
+	 * 误差率ε对应的指纹位数：ε ≈ 2 * BUCKET_SIZE / 2^f
+	 * @param errorRate
+	 * @return
+	 */
+	public static int optimalFingerprintBits(double errorRate) {
+		int bits = (int) Math.ceil(Math.log(2 * BUCKET_SIZE / errorRate) / Math.log(2));
+		return Math.min(32, Math.max(4, bits));
+	}
+
+	/**
+	 * 容纳capacity个元素需要的桶数，是2的幂
+	 * @param capacity
+	 * @return
+	 */
+	public static int optimalBucketCount(long capacity) {
+		long buckets = (long) Math.ceil(capacity / (BUCKET_SIZE * LOAD_FACTOR));
+		long pow = Long.highestOneBit(Math.max(1, buckets));
+		if (pow < buckets) {
+			pow <<= 1;
+		}
+		if (pow > 1 << 30) {
+			throw new IllegalArgumentException("capacity is too large: " + capacity);
+		}
+		return (int) pow;
+	}
+
+	/**
+	 * value的64位hash，低位选桶，高32位做指纹
+	 * @param value
+	 * @return
+	 */
+	public static long hash(long value) {
+		return HashUtils.fmix64(value);
+	}
+
+	/**
+	 * 不为0的指纹
+	 */
+	public static int fingerprint(long hash, int fingerprintBits) {
+		int fingerprint = (int) (hash >>> 32) & (int) ((1L << fingerprintBits) - 1);
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	/**
+	 * 另一个候选桶，altIndex(altIndex(i, fp), fp) == i
+	 * 指纹的hash只用32位的移位和异或，redis的lua脚本里也能算出一样的值
+	 * @param index
+	 * @param fingerprint
+	 * @param bucketMask 桶数 - 1
+	 * @return
+	 */
+	public static int altIndex(int index, int fingerprint, int bucketMask) {
+		int h = fingerprint;
+		h ^= h << 13;
+		h ^= h >>> 17;
+		h ^= h << 5;
+		return index ^ (h & bucketMask);
+	}
+
+	public CuckooFilter(long capacity, double errorRate) {
+		this(optimalBucketCount(capacity), optimalFingerprintBits(errorRate));
+	}
+
+	/**
+	 * @param bucketCount 2的幂
+	 * @param fingerprintBits [1, 32]
+	 */
+	public CuckooFilter(int bucketCount, int fingerprintBits) {
+		if (bucketCount <= 0 || Integer.bitCount(bucketCount) != 1) {
+			throw new IllegalArgumentException("bucketCount should be a power of 2");
+		}
+		if (fingerprintBits <= 0 || fingerprintBits > 32) {
+			throw new IllegalArgumentException("fingerprintBits should be in [1, 32]");
+		}
+		this.fingerprintBits = fingerprintBits;
+		this.fingerprintMask = (int) ((1L << fingerprintBits) - 1);
+		this.bucketMask = bucketCount - 1;
+		this.table = BitArray.heap((long) bucketCount * BUCKET_SIZE * fingerprintBits);
+	}
+
+	/**
+	 * @param value
+	 * @return filter已满时返回false，filter不变
+	 */
+	public boolean add(long value) {
+		long hash = hash(value);
+		int fingerprint = fingerprint(hash, fingerprintBits);
+		int i1 = (int) hash & bucketMask;
+		int i2 = altIndex(i1, fingerprint, bucketMask);
+		if (insert(i1, fingerprint) || insert(i2, fingerprint)) {
+			count++;
+			return true;
+		}
+
+		int[] buckets = new int[MAX_KICKS];
+		int[] slots = new int[MAX_KICKS];
+		int[] olds = new int[MAX_KICKS];
+		int bucket = random.nextBoolean() ? i1 : i2;
+		int victim = fingerprint;
+		for (int n = 0; n < MAX_KICKS; n++) {
+			int slot = random.nextInt(BUCKET_SIZE);
+			buckets[n] = bucket;
+			slots[n] = slot;
+			olds[n] = getSlot(bucket, slot);
+			setSlot(bucket, slot, victim);
+			victim = olds[n];
+			bucket = altIndex(bucket, victim, bucketMask);
+			if (insert(bucket, victim)) {
+				count++;
+				return true;
+			}
+		}
+
+		//按相反的顺序复原踢过的指纹
+		for (int n = MAX_KICKS - 1; n >= 0; n--) {
+			setSlot(buckets[n], slots[n], olds[n]);
+		}
+		return false;
+	}
+
+	/**
+	 * 删除一个add过的元素，删除没有add过的元素可能会删掉别的元素的指纹
+	 * @param value
+	 * @return 找到了指纹时返回true
+	 */
+	public boolean remove(long value) {
+		long hash = hash(value);
+		int fingerprint = fingerprint(hash, fingerprintBits);
+		int i1 = (int) hash & bucketMask;
+		int i2 = altIndex(i1, fingerprint, bucketMask);
+		if (delete(i1, fingerprint) || delete(i2, fingerprint)) {
+			count--;
+			return true;
+		}
+		return false;
+	}
+
+	public boolean contains(long value) {
+		return approximateCount(value) > 0;
+	}
+
+	/**
+	 * 两个候选桶里和value指纹相同的槽数，是value被add次数的上限
+	 * @param value
+	 * @return
+	 */
+	public int approximateCount(long value) {
+		long hash = hash(value);
+		int fingerprint = fingerprint(hash, fingerprintBits);
+		int i1 = (int) hash & bucketMask;
+		int i2 = altIndex(i1, fingerprint, bucketMask);
+		int count = countInBucket(i1, fingerprint);
+		if (i2 != i1) {
+			count += countInBucket(i2, fingerprint);
+		}
+		return count;
+	}
+
+	private boolean insert(int bucket, int fingerprint) {
+		for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+			if (getSlot(bucket, slot) == 0) {
+				setSlot(bucket, slot, fingerprint);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean delete(int bucket, int fingerprint) {
+		for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+			if (getSlot(bucket, slot) == fingerprint) {
+				setSlot(bucket, slot, 0);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int countInBucket(int bucket, int fingerprint) {
+		int count = 0;
+		for (int slot = 0; slot < BUCKET_SIZE; slot++) {
+			if (getSlot(bucket, slot) == fingerprint) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 第bucket个桶第slot个槽的指纹，可能跨两个long
+	 */
+	private int getSlot(int bucket, int slot) {
+		long position = ((long) bucket * BUCKET_SIZE + slot) * fingerprintBits;
+		long word = position >>> 6;
+		int shift = (int) (position & 63);
+		long value = table.getWord(word) >>> shift;
+		if (shift + fingerprintBits > 64) {
+			value |= table.getWord(word + 1) << (64 - shift);
+		}
+		return (int) value & fingerprintMask;
+	}
+
+	private void setSlot(int bucket, int slot, int fingerprint) {
+		long position = ((long) bucket * BUCKET_SIZE + slot) * fingerprintBits;
+		long word = position >>> 6;
+		int shift = (int) (position & 63);
+		long mask = fingerprintMask & 0xFFFFFFFFL;
+		long value = fingerprint & 0xFFFFFFFFL;
+		table.setWord(word, (table.getWord(word) & ~(mask << shift)) | (value << shift));
+		if (shift + fingerprintBits > 64) {
+			int high = 64 - shift;
+			table.setWord(word + 1, (table.getWord(word + 1) & ~(mask >>> high)) | (value >>> high));
+		}
+	}
+
+	/**
+	 * 当前的元素个数
+	 * @return
+	 */
+	public long size() {
+		return count;
+	}
+
+	public int getFingerprintBits() {
+		return fingerprintBits;
+	}
+
+	public int getBucketCount() {
+		return bucketMask + 1;
+	}
+
+	/**
+	 * 指纹表占用的bit数
+	 * @return
+	 */
+	public long getBitSize() {
+		return table.bitSize();
+	}
+
+	/**
+	 * 满载时的误差率上限：2 * BUCKET_SIZE / 2^f
+	 * @return
+	 */
+	public double getFalsePositiveProbability() {
+		return 2.0 * BUCKET_SIZE / (1L << fingerprintBits);
+	}
+
+	public static void main(String[] args) {
+		int n = 1000000;
+		CuckooFilter filter = new CuckooFilter(n, 0.00001);
+		int failed = 0;
+		for (long i = 0; i < n; i++) {
+			if (!filter.add(i)) {
+				failed++;
+			}
+		}
+		int falsePositive = 0;
+		for (long i = n; i < 11L * n; i++) {
+			if (filter.contains(i)) {
+				falsePositive++;
+			}
+		}
+		int missed = 0;
+		for (long i = 0; i < n; i += 2) {
+			if (!filter.remove(i)) {
+				missed++;
+			}
+		}
+		for (long i = 1; i < n; i += 2) {
+			if (!filter.contains(i)) {
+				missed++;
+			}
+		}
+		System.out.println("bits/element=" + filter.getBitSize() / (double) n + ", failed adds=" + failed
+				+ ", missed=" + missed + ", fpp=" + falsePositive / (10.0 * n) + ", bound="
+				+ filter.getFalsePositiveProbability());
+		System.out.println("counting bloomfilter bits/element="
+				+ 4.0 * CountingBloomFilter.optimalM(n, 0.00001) / n);
+	}
+}
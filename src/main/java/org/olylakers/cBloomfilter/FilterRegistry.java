@@ -0,0 +1,457 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.olylakers.bloomfilter.HashAlgorithm;
+
+/**
+ * 多租户的bloomfilter注册表，每个租户一个ConcurrentBloomFilter，m、k和hashAlgorithm都按同一个模板，
+ * 租户第一次用到时才从Store加载，Store里没有就新建一个空的
+ * 本地只放最近用过的filter，按bit数组的字节数限制总内存，超过maxBytes时按LRU淘汰最久没用的filter，
+ * 淘汰的filter如果有新的add先存回Store(磁盘见FileStore，redis见org.olylakers.bloomfilter.RedisFilterStore)，
+ * 再用到时重新加载，所以不管有多少租户，本地内存都不超过maxBytes(单个filter比maxBytes大时只留它一个)
+ * 同一个租户同时只有一个线程加载，其它线程等这次加载的结果，不会一起去读Store；
+ * 被淘汰的filter存完之前，这个租户的加载要等它存完，不会读到旧的数据
+ * add之后发现filter正在被淘汰，就等它存完、重新加载后再add一次，add是幂等的，所以淘汰不会丢add
+ * Store出错时被淘汰的filter留在本地，下次淘汰再存，这期间内存可能超过maxBytes
+ * 所有方法都是线程安全的，淘汰在加载新filter的线程里做，存盘的时间算在这次加载里
+ *
+ * @author olylakers
+ *
+ */
+public class FilterRegistry {
+
+	private static final Logger logger = Logger.getLogger(FilterRegistry.class);
+
+	/**
+	 * 冷的filter存在哪里，同一个租户的load和save不会并发调用
+	 */
+	public interface Store {
+		/**
+		 * 把租户的数据读到filter里
+		 * @param tenant
+		 * @param filter 空的filter，m、k和hashAlgorithm是注册表的模板
+		 * @return Store里没有这个租户时返回false
+		 * @throws IOException
+		 */
+		boolean load(String tenant, BloomFilter filter) throws IOException;
+
+		void save(String tenant, BloomFilter filter) throws IOException;
+	}
+
+	private final Store store;
+	private final long maxBytes;
+	private final long m;
+	private final int k;
+	private final HashAlgorithm hashAlgorithm;
+
+	/**
+	 * 加载中、在本地和正在被淘汰的filter
+	 */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * 在本地的filter，按访问顺序，最久没用的在最前面，用它自己加锁
+	 */
+	private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long residentBytes;
+
+	/**
+	 * 每加载一个filter加1，只在淘汰前才需要LRU的顺序，所以两次加载之间每个filter最多移到末尾一次，
+	 * 之后的访问不拿lru的锁
+	 */
+	private volatile long epoch;
+
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong createCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong saveFailures = new AtomicLong();
+
+	/**
+	 * @param store
+	 * @param maxBytes 本地的filter最多占多少字节
+	 * @param maxNum 每个租户期望放入的元素最大个数
+	 * @param errorRate 容错率
+	 */
+	public FilterRegistry(Store store, long maxBytes, double maxNum, double errorRate) {
+		this(store, maxBytes, BloomFilter.optimalM(maxNum, errorRate),
+				BloomFilter.optimalK(maxNum, BloomFilter.optimalM(maxNum, errorRate)),
+				HashAlgorithm.forBitSize(HashAlgorithm.HADOOP_MURMUR, BloomFilter.optimalM(maxNum, errorRate)));
+	}
+
+	public FilterRegistry(Store store, long maxBytes, long m, int k, HashAlgorithm hashAlgorithm) {
+		if (maxBytes <= 0 || m <= 0 || k <= 0) {
+			throw new IllegalArgumentException("maxBytes, m and k should be positive");
+		}
+		this.store = store;
+		this.maxBytes = maxBytes;
+		this.m = m;
+		this.k = k;
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	/**
+	 * @param tenant
+	 * @param value
+	 * @return 有bit从0变成1时返回true，见BloomFilter#add
+	 * @throws IOException 加载这个租户或者等它存盘时Store出错
+	 */
+	public boolean add(String tenant, long value) throws IOException {
+		for (;;) {
+			Entry entry = acquire(tenant);
+			boolean changed = entry.filter.add(value);
+			if (changed) {
+				entry.dirty = true;
+			}
+			// dirty先写、evicted后读，淘汰时evicted先写、dirty和bit后读，两边至少有一边能看到对方
+			if (!entry.evicted) {
+				return changed;
+			}
+		}
+	}
+
+	public boolean contains(String tenant, long value) throws IOException {
+		return acquire(tenant).filter.contains(value);
+	}
+
+	/**
+	 * 见BloomFilter#containsAll
+	 * @param tenant
+	 * @param values
+	 * @param resultBitmap
+	 * @return
+	 * @throws IOException
+	 */
+	public int containsAll(String tenant, long[] values, long[] resultBitmap) throws IOException {
+		return acquire(tenant).filter.containsAll(values, resultBitmap);
+	}
+
+	/**
+	 * 把本地所有有新add的filter存到Store，比如关闭前调用
+	 * @throws IOException 第一个出错的租户的异常，其它租户还是会存
+	 */
+	public void flush() throws IOException {
+		List<Entry> resident;
+		synchronized (lru) {
+			resident = new ArrayList<Entry>(lru.values());
+		}
+		IOException error = null;
+		for (Entry entry : resident) {
+			try {
+				entry.save();
+			} catch (IOException e) {
+				saveFailures.incrementAndGet();
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * 本地的filter，等它加载完；正在被淘汰的，等它存完再重新加载
+	 */
+	private Entry acquire(String tenant) throws IOException {
+		for (;;) {
+			Entry entry = entries.get(tenant);
+			if (entry == null) {
+				Entry created = new Entry(tenant);
+				entry = entries.putIfAbsent(tenant, created);
+				if (entry == null) {
+					entry = created;
+					created.task.run();
+				}
+			}
+			try {
+				entry.task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while loading " + tenant, e);
+			} catch (ExecutionException e) {
+				entries.remove(tenant, entry);
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			if (!entry.evicted) {
+				touch(entry);
+				return entry;
+			}
+			entry.awaitSaved();
+		}
+	}
+
+	/**
+	 * 这一轮加载里已经移到末尾过的不再拿锁，同一轮里先访问的排在前面，只是近似的LRU
+	 */
+	private void touch(Entry entry) {
+		if (entry.touched == epoch) {
+			return;
+		}
+		synchronized (lru) {
+			entry.touched = epoch;
+			lru.get(entry.tenant);
+		}
+	}
+
+	/**
+	 * 在task里执行，新的filter放进LRU，超过maxBytes时淘汰最久没用的
+	 */
+	private ConcurrentBloomFilter load(Entry entry) throws IOException {
+		ConcurrentBloomFilter filter = new ConcurrentBloomFilter(m, k, hashAlgorithm);
+		if (store.load(entry.tenant, filter)) {
+			loadCount.incrementAndGet();
+		} else {
+			createCount.incrementAndGet();
+		}
+		entry.filter = filter;
+		entry.bytes = filter.getBitArray().wordCount() << 3;
+
+		List<Entry> victims = new ArrayList<Entry>();
+		synchronized (lru) {
+			entry.touched = ++epoch;
+			lru.put(entry.tenant, entry);
+			residentBytes += entry.bytes;
+			Iterator<Entry> it = lru.values().iterator();
+			while (residentBytes > maxBytes && lru.size() > 1) {
+				Entry victim = it.next();
+				it.remove();
+				residentBytes -= victim.bytes;
+				victim.startEviction();
+				victims.add(victim);
+			}
+		}
+		for (Entry victim : victims) {
+			evict(victim);
+		}
+		return filter;
+	}
+
+	/**
+	 * 存完才从entries里删掉，这之前这个租户的加载都在等它；存失败就放回LRU
+	 */
+	private void evict(Entry victim) {
+		try {
+			victim.save();
+			entries.remove(victim.tenant, victim);
+			evictionCount.incrementAndGet();
+		} catch (IOException e) {
+			saveFailures.incrementAndGet();
+			logger.warn("failed to save the filter of " + victim.tenant + ", keep it in memory", e);
+			synchronized (lru) {
+				victim.evicted = false;
+				victim.touched = epoch;
+				lru.put(victim.tenant, victim);
+				residentBytes += victim.bytes;
+			}
+		} finally {
+			victim.saved.countDown();
+		}
+	}
+
+	private final class Entry {
+		final String tenant;
+		final FutureTask<ConcurrentBloomFilter> task;
+		volatile ConcurrentBloomFilter filter;
+		long bytes;
+		volatile boolean dirty;
+		volatile boolean evicted;
+
+		/**
+		 * 最后一次移到LRU末尾时的epoch
+		 */
+		volatile long touched = -1;
+
+		/**
+		 * 每次淘汰一个新的，存完(或者失败)时countDown
+		 */
+		volatile CountDownLatch saved;
+
+		Entry(String tenant) {
+			this.tenant = tenant;
+			this.task = new FutureTask<ConcurrentBloomFilter>(new Callable<ConcurrentBloomFilter>() {
+				public ConcurrentBloomFilter call() throws Exception {
+					return load(Entry.this);
+				}
+			});
+		}
+
+		/**
+		 * 持有lru的锁时调用
+		 */
+		void startEviction() {
+			saved = new CountDownLatch(1);
+			evicted = true;
+		}
+
+		void awaitSaved() throws IOException {
+			CountDownLatch latch = saved;
+			if (latch == null) {
+				return;
+			}
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while saving " + tenant, e);
+			}
+		}
+
+		/**
+		 * 没有新的add就不存，先清dirty，存的时候并发的add会再把它置上
+		 */
+		synchronized void save() throws IOException {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			try {
+				store.save(tenant, filter);
+			} catch (IOException e) {
+				dirty = true;
+				throw e;
+			} catch (RuntimeException e) {
+				dirty = true;
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * 每个租户一个快照文件，见FilterSnapshot，先写临时文件再rename，存到一半出错不会破坏旧的快照
+	 */
+	public static class FileStore implements Store {
+		private final File dir;
+		private final boolean compress;
+
+		/**
+		 * @param dir
+		 * @param compress 见FilterSnapshot#save，租户的filter大多是稀疏的，一般用true
+		 */
+		public FileStore(File dir, boolean compress) {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IllegalArgumentException(dir + " is not a directory");
+			}
+			this.dir = dir;
+			this.compress = compress;
+		}
+
+		public boolean load(String tenant, BloomFilter filter) throws IOException {
+			File file = file(tenant);
+			if (!file.exists()) {
+				return false;
+			}
+			FileChannel in = FileChannel.open(file.toPath());
+			try {
+				BloomFilter loaded = FilterSnapshot.loadBloomFilter(in, filter.getBitArray());
+				if (loaded.getK() != filter.getK() || loaded.getHashAlgorithm() != filter.getHashAlgorithm()) {
+					throw new IOException("the snapshot of " + tenant + "(k=" + loaded.getK() + ", "
+							+ loaded.getHashAlgorithm() + ") does not match the template(k=" + filter.getK() + ", "
+							+ filter.getHashAlgorithm() + ")");
+				}
+				return true;
+			} finally {
+				in.close();
+			}
+		}
+
+		public void save(String tenant, BloomFilter filter) throws IOException {
+			File file = file(tenant);
+			File tmp = new File(dir, file.getName() + ".tmp");
+			FilterSnapshot.save(filter, tmp, compress);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private File file(String tenant) throws IOException {
+			return new File(dir, URLEncoder.encode(tenant, "UTF-8") + ".bf");
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getResidentBytes() {
+		synchronized (lru) {
+			return residentBytes;
+		}
+	}
+
+	public int getResidentCount() {
+		synchronized (lru) {
+			return lru.size();
+		}
+	}
+
+	/**
+	 * 从Store加载回来的次数
+	 * @return
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * Store里没有，新建空filter的次数
+	 * @return
+	 */
+	public long getCreateCount() {
+		return createCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getSaveFailures() {
+		return saveFailures.get();
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "bloomfilter-registry");
+		// 每个租户1万个元素，万分之一误判，约24KB，本地最多放100个租户
+		FilterRegistry registry = new FilterRegistry(new FileStore(dir, true), 100 * 24 * 1024, 10000, 0.0001);
+		for (int tenant = 0; tenant < 1000; tenant++) {
+			for (long i = 0; i < 1000; i++) {
+				registry.add("tenant-" + tenant, i);
+			}
+		}
+		int falseNegative = 0;
+		for (int tenant = 0; tenant < 1000; tenant++) {
+			for (long i = 0; i < 1000; i++) {
+				if (!registry.contains("tenant-" + tenant, i)) {
+					falseNegative++;
+				}
+			}
+		}
+		registry.flush();
+		System.out.println("resident=" + registry.getResidentCount() + ", bytes=" + registry.getResidentBytes()
+				+ ", loads=" + registry.getLoadCount() + ", evictions=" + registry.getEvictionCount()
+				+ ", false negatives=" + falseNegative);
+	}
+}
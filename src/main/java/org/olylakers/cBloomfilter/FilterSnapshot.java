@@ -0,0 +1,512 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import org.olylakers.bloomfilter.HashAlgorithm;
+
+/**
+ * bloomfilter的二进制快照，所有数字都是little endian，和BitArray的long一致
+ * 文件头固定HEADER_BYTES个字节：
+ * magic, version, type, hashAlgorithm, k, layout, m, seed, wordCount, chunkWords, 文件头的crc32, 保留
+ * 之后是wordCount个long，有两种layout：
+ * LAYOUT_RAW: 连续的long，最后是所有long的crc32，数据从HEADER_BYTES开始，可以直接map
+ * LAYOUT_CHUNKED: 每chunkWords个long一块，每块是encoding、payload字节数、payload的crc32和payload，
+ * 全0的块只有块头，非0的long很少的块存(块内下标, long)，其它的块原样存，稀疏的filter会小很多
+ * 保存和加载都是按块批量读写channel，不会一个long一个long地读写，也不需要把整个文件读到内存
+ * 支持BloomFilter、BlockedBloomFilter、ConcurrentBloomFilter和CountingBloomFilter，
+ * BinaryFuseFilter有自己的格式，见BinaryFuseFilter#writeTo
+ *
+ * @author olylakers
+ *
+ */
+public final class FilterSnapshot {
+
+	/**
+	 * "OBFS"
+	 */
+	public static final int MAGIC = 0x5346424f;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_BYTES = 64;
+
+	public static final int TYPE_BLOOM = 1;
+	public static final int TYPE_BLOCKED = 2;
+	public static final int TYPE_CONCURRENT = 3;
+	public static final int TYPE_COUNTING = 4;
+
+	public static final int LAYOUT_RAW = 0;
+	public static final int LAYOUT_CHUNKED = 1;
+
+	/**
+	 * 每块2^16个long(512K)
+	 */
+	public static final int CHUNK_WORDS = 1 << 16;
+
+	private static final int ENCODING_RAW = 0;
+	private static final int ENCODING_ZERO = 1;
+	private static final int ENCODING_SPARSE = 2;
+
+	/**
+	 * 块头：encoding, payload字节数, crc32
+	 */
+	private static final int CHUNK_HEADER_BYTES = 12;
+
+	/**
+	 * 文件头的crc32在第52个字节，校验它之前的所有字节
+	 */
+	private static final int HEADER_CRC_POSITION = 52;
+
+	private FilterSnapshot() {
+	}
+
+	/**
+	 * 文件头
+	 */
+	public static final class Header {
+		public final int version;
+		public final int type;
+		public final HashAlgorithm hashAlgorithm;
+		public final int k;
+		public final int layout;
+		/**
+		 * BloomFilter的bit数或者CountingBloomFilter的桶数
+		 */
+		public final long m;
+		/**
+		 * 现在的hash都没有seed，保留给带seed的hash
+		 */
+		public final long seed;
+		public final long wordCount;
+		public final int chunkWords;
+
+		Header(int version, int type, HashAlgorithm hashAlgorithm, int k, int layout, long m, long seed,
+				long wordCount, int chunkWords) {
+			this.version = version;
+			this.type = type;
+			this.hashAlgorithm = hashAlgorithm;
+			this.k = k;
+			this.layout = layout;
+			this.m = m;
+			this.seed = seed;
+			this.wordCount = wordCount;
+			this.chunkWords = chunkWords;
+		}
+	}
+
+	/**
+	 * @param filter
+	 * @param file
+	 * @param compress true时用LAYOUT_CHUNKED，压缩稀疏的块；false时用LAYOUT_RAW，可以用map直接映射
+	 * @throws IOException
+	 */
+	public static void save(BloomFilter filter, File file, boolean compress) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			save(filter, out.getChannel(), compress);
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void save(BloomFilter filter, WritableByteChannel out, boolean compress) throws IOException {
+		int type = filter instanceof BlockedBloomFilter ? TYPE_BLOCKED
+				: filter instanceof ConcurrentBloomFilter ? TYPE_CONCURRENT : TYPE_BLOOM;
+		BitArray bits = filter.getBitArray();
+		write(out, new Header(VERSION, type, filter.getHashAlgorithm(), filter.getK(),
+				compress ? LAYOUT_CHUNKED : LAYOUT_RAW, filter.getM(), 0, bits.wordCount(), CHUNK_WORDS), bits);
+	}
+
+	public static void save(CountingBloomFilter filter, File file, boolean compress) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			save(filter, out.getChannel(), compress);
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void save(CountingBloomFilter filter, WritableByteChannel out, boolean compress)
+			throws IOException {
+		long wordCount = CountingBloomFilter.bucketBits(filter.getMaxBitSize()) >>> 6;
+		write(out, new Header(VERSION, TYPE_COUNTING, filter.getHashAlgorithm(), filter.getK(),
+				compress ? LAYOUT_CHUNKED : LAYOUT_RAW, filter.getMaxBitSize(), 0, wordCount, CHUNK_WORDS),
+				filter.getBuckets());
+	}
+
+	/**
+	 * 加载到堆里，ConcurrentBloomFilter用BitArray.atomic，其它用BitArray.heap
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BloomFilter loadBloomFilter(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return loadBloomFilter(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static BloomFilter loadBloomFilter(ReadableByteChannel in) throws IOException {
+		Header header = readHeader(in);
+		if (header.type == TYPE_COUNTING) {
+			throw new IllegalArgumentException("the snapshot is a CountingBloomFilter");
+		}
+		BitArray bits = header.type == TYPE_CONCURRENT ? BitArray.atomic(header.m) : BitArray.heap(header.m);
+		readBody(in, header, bits);
+		return newBloomFilter(header, bits);
+	}
+
+	/**
+	 * 加载到指定的存储，比如BitArray.direct，bitSize必须是header.m
+	 * @param in
+	 * @param bits
+	 * @return
+	 * @throws IOException
+	 */
+	public static BloomFilter loadBloomFilter(ReadableByteChannel in, BitArray bits) throws IOException {
+		Header header = readHeader(in);
+		if (header.type == TYPE_COUNTING || bits.bitSize() != header.m) {
+			throw new IllegalArgumentException("the snapshot has " + header.m + " bits");
+		}
+		readBody(in, header, bits);
+		return newBloomFilter(header, bits);
+	}
+
+	/**
+	 * 直接只读映射LAYOUT_RAW的快照，不复制数据，适合只查询的大filter，add会抛ReadOnlyBufferException，
+	 * ConcurrentBloomFilter映射回来是BloomFilter
+	 * @param file
+	 * @param verify 是否校验数据的crc32，需要顺序读一遍整个文件
+	 * @return
+	 * @throws IOException
+	 */
+	public static BloomFilter mapBloomFilter(File file, boolean verify) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Header header = readHeader(raf.getChannel());
+			if (header.type == TYPE_COUNTING) {
+				throw new IllegalArgumentException("the snapshot is a CountingBloomFilter");
+			}
+			return newBloomFilter(header, mapBody(raf, header, verify));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static CountingBloomFilter loadCountingBloomFilter(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return loadCountingBloomFilter(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static CountingBloomFilter loadCountingBloomFilter(ReadableByteChannel in) throws IOException {
+		Header header = readHeader(in);
+		if (header.type != TYPE_COUNTING) {
+			throw new IllegalArgumentException("the snapshot is not a CountingBloomFilter");
+		}
+		BitArray buckets = BitArray.atomic(CountingBloomFilter.bucketBits(header.m));
+		readBody(in, header, buckets);
+		return newCountingBloomFilter(header, buckets);
+	}
+
+	/**
+	 * 直接只读映射LAYOUT_RAW的CountingBloomFilter快照，add/remove会抛ReadOnlyBufferException
+	 * @param file
+	 * @param verify
+	 * @return
+	 * @throws IOException
+	 */
+	public static CountingBloomFilter mapCountingBloomFilter(File file, boolean verify) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Header header = readHeader(raf.getChannel());
+			if (header.type != TYPE_COUNTING) {
+				throw new IllegalArgumentException("the snapshot is not a CountingBloomFilter");
+			}
+			return newCountingBloomFilter(header, mapBody(raf, header, verify));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 只读文件头
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Header readHeader(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return readHeader(in.getChannel());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static Header readHeader(ReadableByteChannel in) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(in, buffer);
+		buffer.flip();
+		if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a bloomfilter snapshot");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, HEADER_CRC_POSITION);
+		if ((int) crc.getValue() != buffer.getInt(HEADER_CRC_POSITION)) {
+			throw new IOException("header checksum mismatch");
+		}
+		buffer.getInt();
+		int version = buffer.getInt();
+		if (version > VERSION) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+		int type = buffer.getInt();
+		int hashId = buffer.getInt();
+		HashAlgorithm hashAlgorithm = HashAlgorithm.forId(hashId);
+		if (hashAlgorithm == null) {
+			throw new IOException("unknown hash algorithm " + hashId);
+		}
+		int k = buffer.getInt();
+		int layout = buffer.getInt();
+		long m = buffer.getLong();
+		long seed = buffer.getLong();
+		long wordCount = buffer.getLong();
+		int chunkWords = buffer.getInt();
+		return new Header(version, type, hashAlgorithm, k, layout, m, seed, wordCount, chunkWords);
+	}
+
+	/**
+	 * ConcurrentBloomFilter只能用AtomicBitArray，加载到其它存储时恢复成BloomFilter
+	 */
+	private static BloomFilter newBloomFilter(Header header, BitArray bits) {
+		BloomFilter filter;
+		if (header.type == TYPE_BLOCKED) {
+			return new BlockedBloomFilter(bits, header.k);
+		} else if (header.type == TYPE_CONCURRENT && bits instanceof AtomicBitArray) {
+			filter = new ConcurrentBloomFilter((AtomicBitArray) bits, header.k);
+		} else if (header.type == TYPE_CONCURRENT || header.type == TYPE_BLOOM) {
+			filter = new BloomFilter(bits, header.k);
+		} else {
+			throw new IllegalArgumentException("unknown snapshot type " + header.type);
+		}
+		filter.setHashAlgorithm(header.hashAlgorithm);
+		return filter;
+	}
+
+	private static CountingBloomFilter newCountingBloomFilter(Header header, BitArray buckets) {
+		CountingBloomFilter filter = new CountingBloomFilter(buckets, header.m, header.k);
+		filter.setHashAlgorithm(header.hashAlgorithm);
+		return filter;
+	}
+
+	private static void write(WritableByteChannel out, Header header, BitArray bits) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_HEADER_BYTES + header.chunkWords * 12)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(header.version).putInt(header.type).putInt(header.hashAlgorithm.getId())
+				.putInt(header.k).putInt(header.layout).putLong(header.m).putLong(header.seed)
+				.putLong(header.wordCount).putInt(header.chunkWords);
+		byte[] headerBytes = new byte[HEADER_CRC_POSITION];
+		buffer.flip();
+		buffer.get(headerBytes);
+		CRC32 crc = new CRC32();
+		crc.update(headerBytes, 0, headerBytes.length);
+		buffer.limit(HEADER_BYTES);
+		buffer.putInt((int) crc.getValue());
+		while (buffer.hasRemaining()) {
+			buffer.put((byte) 0);
+		}
+		buffer.flip();
+		writeFully(out, buffer);
+
+		CRC32 bodyCrc = new CRC32();
+		ByteBuffer words = ByteBuffer.allocateDirect(header.chunkWords << 3).order(ByteOrder.LITTLE_ENDIAN);
+		for (long start = 0; start < header.wordCount; start += header.chunkWords) {
+			int count = (int) Math.min(header.chunkWords, header.wordCount - start);
+			words.clear();
+			bits.getWords(start, words, count);
+			words.flip();
+			if (header.layout == LAYOUT_RAW) {
+				bodyCrc.update(words.duplicate());
+				writeFully(out, words);
+			} else {
+				buffer.clear();
+				encodeChunk(words, count, buffer);
+				buffer.flip();
+				writeFully(out, buffer);
+			}
+		}
+		if (header.layout == LAYOUT_RAW) {
+			buffer.clear();
+			buffer.putInt((int) bodyCrc.getValue());
+			buffer.flip();
+			writeFully(out, buffer);
+		}
+	}
+
+	/**
+	 * 按最小的编码写一块，buffer里依次是块头和payload
+	 */
+	private static void encodeChunk(ByteBuffer words, int count, ByteBuffer buffer) {
+		int nonZero = 0;
+		for (int i = 0; i < count; i++) {
+			if (words.getLong(i << 3) != 0) {
+				nonZero++;
+			}
+		}
+		int encoding = nonZero == 0 ? ENCODING_ZERO : nonZero * 12 < count * 8 ? ENCODING_SPARSE : ENCODING_RAW;
+		buffer.position(CHUNK_HEADER_BYTES);
+		if (encoding == ENCODING_SPARSE) {
+			for (int i = 0; i < count; i++) {
+				long word = words.getLong(i << 3);
+				if (word != 0) {
+					buffer.putInt(i).putLong(word);
+				}
+			}
+		} else if (encoding == ENCODING_RAW) {
+			buffer.put(words);
+		}
+		int payloadBytes = buffer.position() - CHUNK_HEADER_BYTES;
+		ByteBuffer payload = buffer.duplicate();
+		payload.flip().position(CHUNK_HEADER_BYTES);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		buffer.putInt(0, encoding).putInt(4, payloadBytes).putInt(8, (int) crc.getValue());
+	}
+
+	private static void readBody(ReadableByteChannel in, Header header, BitArray bits) throws IOException {
+		if (bits.wordCount() < header.wordCount) {
+			throw new IllegalArgumentException("the snapshot has " + header.wordCount + " words");
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(CHUNK_HEADER_BYTES, header.chunkWords * 12))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 bodyCrc = new CRC32();
+		for (long start = 0; start < header.wordCount; start += header.chunkWords) {
+			int count = (int) Math.min(header.chunkWords, header.wordCount - start);
+			if (header.layout == LAYOUT_RAW) {
+				buffer.clear().limit(count << 3);
+				readFully(in, buffer);
+				buffer.flip();
+				bodyCrc.update(buffer.duplicate());
+				bits.setWords(start, buffer, count);
+				continue;
+			}
+
+			buffer.clear().limit(CHUNK_HEADER_BYTES);
+			readFully(in, buffer);
+			int encoding = buffer.getInt(0);
+			int payloadBytes = buffer.getInt(4);
+			int checksum = buffer.getInt(8);
+			if (payloadBytes < 0 || payloadBytes > buffer.capacity()) {
+				throw new IOException("corrupted chunk at word " + start);
+			}
+			buffer.clear().limit(payloadBytes);
+			readFully(in, buffer);
+			buffer.flip();
+			CRC32 crc = new CRC32();
+			crc.update(buffer.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("chunk checksum mismatch at word " + start);
+			}
+			switch (encoding) {
+			case ENCODING_RAW:
+				bits.setWords(start, buffer, count);
+				break;
+			case ENCODING_ZERO:
+				clear(bits, start, count);
+				break;
+			case ENCODING_SPARSE:
+				clear(bits, start, count);
+				while (buffer.hasRemaining()) {
+					int index = buffer.getInt();
+					bits.setWord(start + index, buffer.getLong());
+				}
+				break;
+			default:
+				throw new IOException("unknown chunk encoding " + encoding);
+			}
+		}
+		if (header.layout == LAYOUT_RAW) {
+			buffer.clear().limit(4);
+			readFully(in, buffer);
+			if (buffer.getInt(0) != (int) bodyCrc.getValue()) {
+				throw new IOException("body checksum mismatch");
+			}
+		}
+	}
+
+	/**
+	 * 新分配的存储本来就是0，只有指定的存储需要清0
+	 */
+	private static void clear(BitArray bits, long start, int count) {
+		for (int i = 0; i < count; i++) {
+			if (bits.getWord(start + i) != 0) {
+				bits.setWord(start + i, 0);
+			}
+		}
+	}
+
+	private static BitArray mapBody(RandomAccessFile raf, Header header, boolean verify) throws IOException {
+		if (header.layout != LAYOUT_RAW) {
+			throw new IllegalArgumentException("only LAYOUT_RAW snapshots can be mapped");
+		}
+		long bodyBytes = header.wordCount << 3;
+		if (raf.length() < HEADER_BYTES + bodyBytes + 4) {
+			throw new IOException("truncated snapshot");
+		}
+		long bitSize = header.type == TYPE_COUNTING ? CountingBloomFilter.bucketBits(header.m) : header.m;
+		ByteBufferBitArray bits = ByteBufferBitArray.map(raf.getChannel(), HEADER_BYTES, bitSize,
+				FileChannel.MapMode.READ_ONLY);
+		if (verify) {
+			CRC32 crc = new CRC32();
+			ByteBuffer words = ByteBuffer.allocateDirect(header.chunkWords << 3).order(ByteOrder.LITTLE_ENDIAN);
+			for (long start = 0; start < header.wordCount; start += header.chunkWords) {
+				int count = (int) Math.min(header.chunkWords, header.wordCount - start);
+				words.clear();
+				bits.getWords(start, words, count);
+				words.flip();
+				crc.update(words);
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			raf.seek(HEADER_BYTES + bodyBytes);
+			raf.readFully(trailer.array());
+			if (trailer.getInt(0) != (int) crc.getValue()) {
+				throw new IOException("body checksum mismatch");
+			}
+		}
+		return bits;
+	}
+
+	private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				throw new EOFException("truncated snapshot");
+			}
+		}
+	}
+
+	private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+}
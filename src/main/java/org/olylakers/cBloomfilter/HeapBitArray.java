@@ -0,0 +1,105 @@
+package org.olylakers.cBloomfilter;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 堆内的BitArray，把long[]按每页2^20个long(8M)分页，总bit数只受内存限制，也不需要一次分配一整块连续的大数组
+ *
+ * @author olylakers
+ *
+ */
+public class HeapBitArray extends BitArray implements Serializable {
+	private static final long serialVersionUID = 4387342385126547063L;
+
+	private static final int PAGE_SHIFT = 20;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private final long bitSize;
+	private final long wordCount;
+	private final long[][] pages;
+
+	public HeapBitArray(long bitSize) {
+		this.bitSize = bitSize;
+		this.wordCount = words(bitSize);
+		long pageCount = ((wordCount - 1) >>> PAGE_SHIFT) + 1;
+		if (pageCount > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("bitSize is too large: " + bitSize);
+		}
+		pages = new long[(int) pageCount][];
+		for (int i = 0; i < pages.length; i++) {
+			long remain = wordCount - ((long) i << PAGE_SHIFT);
+			pages[i] = new long[(int) Math.min(PAGE_SIZE, remain)];
+		}
+	}
+
+	@Override
+	public boolean get(long index) {
+		long word = index >>> 6;
+		return (pages[(int) (word >>> PAGE_SHIFT)][(int) (word & PAGE_MASK)] & (1L << index)) != 0;
+	}
+
+	@Override
+	public void set(long index) {
+		long word = index >>> 6;
+		pages[(int) (word >>> PAGE_SHIFT)][(int) (word & PAGE_MASK)] |= 1L << index;
+	}
+
+	@Override
+	public long getWord(long wordIndex) {
+		return pages[(int) (wordIndex >>> PAGE_SHIFT)][(int) (wordIndex & PAGE_MASK)];
+	}
+
+	@Override
+	public void setWord(long wordIndex, long word) {
+		pages[(int) (wordIndex >>> PAGE_SHIFT)][(int) (wordIndex & PAGE_MASK)] = word;
+	}
+
+	/**
+	 * 按页用LongBuffer批量复制
+	 */
+	@Override
+	void getWords(long wordIndex, ByteBuffer dst, int count) {
+		while (count > 0) {
+			long[] page = pages[(int) (wordIndex >>> PAGE_SHIFT)];
+			int offset = (int) (wordIndex & PAGE_MASK);
+			int n = Math.min(count, page.length - offset);
+			dst.asLongBuffer().put(page, offset, n);
+			dst.position(dst.position() + (n << 3));
+			wordIndex += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	void setWords(long wordIndex, ByteBuffer src, int count) {
+		while (count > 0) {
+			long[] page = pages[(int) (wordIndex >>> PAGE_SHIFT)];
+			int offset = (int) (wordIndex & PAGE_MASK);
+			int n = Math.min(count, page.length - offset);
+			src.asLongBuffer().get(page, offset, n);
+			src.position(src.position() + (n << 3));
+			wordIndex += n;
+			count -= n;
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (long[] page : pages) {
+			Arrays.fill(page, 0L);
+		}
+	}
+
+	@Override
+	public long bitSize() {
+		return bitSize;
+	}
+
+	@Override
+	public long wordCount() {
+		return wordCount;
+	}
+}
@@ -0,0 +1,149 @@
+package org.olylakers.cBloomfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 可以自动扩容的bloomfilter，参考Almeida, Baquero, Preguiça, Hutchison: Scalable Bloom Filters
+ * 由一组子filter组成，只往最新的子filter里add，当它的bit填充率(popcount/m)超过设计容量时的填充率时，
+ * 新建一个容量是它GROWTH倍、误差率是它TIGHTENING_RATIO倍的子filter
+ * 第i个子filter的误差率是p0 * r^i，总的误差率不超过p0 / (1 - r)，所以p0 = errorRate * (1 - r)，
+ * 不管add多少元素，总的误差率都不超过errorRate
+ * 和BloomFilter一样不是线程安全的
+ *
+ * @author olylakers
+ *
+ */
+public class ScalableBloomFilter {
+
+	/**
+	 * 每个子filter的容量是上一个的2倍
+	 */
+	public static final int GROWTH = 2;
+
+	/**
+	 * 每个子filter的误差率是上一个的0.85倍
+	 */
+	public static final double TIGHTENING_RATIO = 0.85;
+
+	private final double errorRate;
+	private final List<BloomFilter> filters = new ArrayList<BloomFilter>();
+
+	private long capacity;
+	private double filterErrorRate;
+
+	/**
+	 * 最新的子filter设计容量时的填充率，填充率超过它就扩容
+	 */
+	private double maxFillRatio;
+
+	/**
+	 * 最新的子filter add了多少元素，每add checkInterval(容量的1/64)个元素做一次popcount
+	 */
+	private long added;
+	private long checkInterval;
+
+	/**
+	 * @param initialCapacity 第一个子filter的容量
+	 * @param errorRate 总的误差率
+	 */
+	public ScalableBloomFilter(long initialCapacity, double errorRate) {
+		if (initialCapacity <= 0 || errorRate <= 0 || errorRate >= 1) {
+			throw new IllegalArgumentException("initialCapacity should be positive and errorRate should be in (0, 1)");
+		}
+		this.errorRate = errorRate;
+		this.capacity = initialCapacity;
+		this.filterErrorRate = errorRate * (1 - TIGHTENING_RATIO);
+		addFilter();
+	}
+
+	/**
+	 * @param value
+	 * @return value之前不存在时返回true
+	 */
+	public boolean add(long value) {
+		if (contains(value)) {
+			return false;
+		}
+		BloomFilter current = filters.get(filters.size() - 1);
+		current.add(value);
+		if (++added % checkInterval == 0
+				&& current.getBitArray().cardinality() >= maxFillRatio * current.size()) {
+			capacity *= GROWTH;
+			filterErrorRate *= TIGHTENING_RATIO;
+			addFilter();
+		}
+		return true;
+	}
+
+	/**
+	 * 从最新(最大)的子filter开始查，大部分元素都在最新的几个子filter里
+	 * @param value
+	 * @return
+	 */
+	public boolean contains(long value) {
+		for (int i = filters.size() - 1; i >= 0; i--) {
+			if (filters.get(i).contains(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void addFilter() {
+		long m = BloomFilter.optimalM(capacity, filterErrorRate);
+		int k = Math.max(1, BloomFilter.optimalK(capacity, m));
+		filters.add(new BloomFilter(m, k));
+		maxFillRatio = 1 - Math.exp(-k * (double) capacity / m);
+		added = 0;
+		checkInterval = Math.max(1, capacity / 64);
+	}
+
+	/**
+	 * 按每个子filter实际的填充率估算总的误差率：1 - prod(1 - fill_i^k_i)，需要对所有子filter做popcount
+	 * @return
+	 */
+	public double getFalsePositiveProbability() {
+		double p = 1;
+		for (BloomFilter filter : filters) {
+			double fill = filter.getBitArray().cardinality() / (double) filter.size();
+			p *= 1 - Math.pow(fill, filter.getK());
+		}
+		return 1 - p;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	public int getFilterCount() {
+		return filters.size();
+	}
+
+	/**
+	 * 所有子filter的bit数
+	 * @return
+	 */
+	public long size() {
+		long size = 0;
+		for (BloomFilter filter : filters) {
+			size += filter.size();
+		}
+		return size;
+	}
+
+	public static void main(String[] args) {
+		ScalableBloomFilter filter = new ScalableBloomFilter(10000, 0.001);
+		for (long i = 0; i < 1000000; i++) {
+			filter.add(i);
+		}
+		int falsePositive = 0;
+		for (long i = 1000000; i < 2000000; i++) {
+			if (filter.contains(i)) {
+				falsePositive++;
+			}
+		}
+		System.out.println("filters=" + filter.getFilterCount() + ", bits=" + filter.size() + ", expected fpp="
+				+ filter.getFalsePositiveProbability() + ", actual fpp=" + falsePositive / 1000000.0);
+	}
+}